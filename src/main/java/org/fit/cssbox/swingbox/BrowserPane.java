@@ -17,25 +17,32 @@
 
 package org.fit.cssbox.swingbox;
 
+import org.fit.cssbox.swingbox.performance.PageFetcher;
+import org.fit.cssbox.swingbox.performance.SharedHttpClient;
 import org.fit.cssbox.swingbox.util.*;
 import org.fit.cssbox.swingbox.util.GeneralEvent.EventType;
+import org.fit.cssbox.swingbox.view.ViewportView;
 import org.fit.net.DataURLHandler;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.text.*;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.security.Security;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 
 /**
  * The Class BrowserPane - JEditorPane based component capable to render HTML +
@@ -48,10 +55,13 @@ import java.util.*;
 @SuppressWarnings("unused")
 public class BrowserPane extends JEditorPane {
   private static final long serialVersionUID = 7303652028812084960L;
-  private InputStream loadingStream;
+  private final transient NavigationScheduler navigation =
+      new NavigationScheduler();
   private Hashtable<String, Object> pageProperties;
   private Document document;
   private static EditorKit swingBoxEditorKit;
+  private transient TiledBackingStore tiles;
+  private transient DocumentListener tileInvalidator;
 
   /**
    * Instantiates a new browser pane.
@@ -101,10 +111,111 @@ public class BrowserPane extends JEditorPane {
 
   @Override
   public void setDocument( Document document ) {
+    if( tileInvalidator != null ) {
+      // the field may already refer to the document being loaded, the
+      // listener is registered with the one shown
+      final var shown = super.getDocument();
+      if( shown != null ) {
+        shown.removeDocumentListener( tileInvalidator );
+      }
+      if( document != null ) {
+        document.addDocumentListener( tileInvalidator );
+      }
+      tiles.invalidateAll();
+    }
     this.document = document;
     super.setDocument( document );
   }
 
+  /**
+   * Enables or disables painting through a tiled backing store. When enabled,
+   * the rendered page is kept in tiles of
+   * {@link TiledBackingStore#TILE_SIZE} pixels, so that scrolling and
+   * repainting mostly copy the tiles, and the tiles near the visible area are
+   * rendered in advance when the event dispatch thread is idle. The tiles
+   * touched by a repaint request or by a document change are rendered again.
+   * Disabled by default.
+   *
+   * @param enabled true to use the tiles
+   */
+  public void setTiledRendering( boolean enabled ) {
+    if( enabled == isTiledRendering() ) {
+      return;
+    }
+
+    final var shown = super.getDocument();
+    if( enabled ) {
+      final var store = new TiledBackingStore( this, super::paintComponent );
+      tiles = store;
+      // bound to its own store, which stays valid when the tiles are disabled
+      tileInvalidator = new DocumentListener() {
+        @Override
+        public void insertUpdate( DocumentEvent e ) {
+          store.invalidateAll();
+        }
+
+        @Override
+        public void removeUpdate( DocumentEvent e ) {
+          store.invalidateAll();
+        }
+
+        @Override
+        public void changedUpdate( DocumentEvent e ) {
+          store.invalidateAll();
+        }
+      };
+      if( shown != null ) {
+        shown.addDocumentListener( tileInvalidator );
+      }
+    }
+    else {
+      if( shown != null ) {
+        shown.removeDocumentListener( tileInvalidator );
+      }
+      tileInvalidator = null;
+      tiles.dispose();
+      tiles = null;
+    }
+    repaint();
+  }
+
+  /**
+   * Checks whether the pane is painted through a tiled backing store.
+   *
+   * @return true when the tiles are used
+   * @see #setTiledRendering(boolean)
+   */
+  public boolean isTiledRendering() {
+    return tiles != null;
+  }
+
+  @Override
+  protected void paintComponent( Graphics g ) {
+    final var store = tiles;
+    if( store == null || !(g instanceof Graphics2D) ||
+        !store.paint( (Graphics2D) g ) ) {
+      super.paintComponent( g );
+    }
+  }
+
+  @Override
+  public void repaint( long tm, int x, int y, int width, int height ) {
+    final var store = tiles;
+    if( store != null ) {
+      store.invalidate( new Rectangle( x, y, width, height ) );
+    }
+    super.repaint( tm, x, y, width, height );
+  }
+
+  @Override
+  public void setBounds( int x, int y, int width, int height ) {
+    final var store = tiles;
+    if( store != null && (width != getWidth() || height != getHeight()) ) {
+      store.invalidateAll();
+    }
+    super.setBounds( x, y, width, height );
+  }
+
   /**
    * Activates tooltips.
    *
@@ -173,17 +284,14 @@ public class BrowserPane extends JEditorPane {
 
   /**
    * Renders current content to graphic context, which is returned. May return
-   * null;
+   * null; The whole page is kept in a single image, use
+   * {@link #renderContent(int, StripConsumer)} for large pages.
    *
    * @return the Graphics2D context
    * @see Graphics2D
    */
   public Graphics2D renderContent() {
-    View view = null;
-    ViewFactory factory = getEditorKit().getViewFactory();
-    if( factory instanceof SwingBoxViewFactory ) {
-      view = ((SwingBoxViewFactory) factory).getViewport();
-    }
+    View view = getViewportView();
 
     if( view != null ) {
       int w = (int) view.getPreferredSpan( View.X_AXIS );
@@ -218,17 +326,149 @@ public class BrowserPane extends JEditorPane {
       throw new NullPointerException(
           "Clip is not set on graphics context" );
     }
-    ViewFactory factory = getEditorKit().getViewFactory();
-    if( factory instanceof SwingBoxViewFactory ) {
-      View view = ((SwingBoxViewFactory) factory).getViewport();
-      if( view != null ) {
-        view.paint( g, g.getClip() );
-      }
+    View view = getViewportView();
+    if( view != null ) {
+      view.paint( g, g.getClip() );
     }
 
     return g;
   }
 
+  /**
+   * Gets the size of the rendered content, i.e. the size of the image
+   * produced by {@link #renderContent()}.
+   *
+   * @return the content size or null when there is no content
+   */
+  public Dimension getContentSize() {
+    final var view = getViewportView();
+    if( view == null ) {
+      return null;
+    }
+    return new Dimension( (int) view.getPreferredSpan( View.X_AXIS ),
+                          (int) view.getPreferredSpan( View.Y_AXIS ) );
+  }
+
+  /**
+   * Renders current content in horizontal strips of the full content width
+   * and passes them to the consumer from top to bottom. All the strips are
+   * painted into a single buffer, so the memory needed depends on the strip
+   * height only, not on the content height. The document is locked for
+   * reading while each strip is painted, but not while the consumer
+   * processes it, so a slow consumer does not block the document updates.
+   *
+   * @param stripHeight the height of a strip in pixels
+   * @param consumer    the consumer of the painted strips
+   * @return true when the content was rendered, false when there is no
+   * content
+   * @throws IOException                     when the consumer fails
+   * @throws ConcurrentModificationException when the content is replaced or
+   *                                         resized between the strips
+   * @see #getContentSize()
+   */
+  public boolean renderContent( int stripHeight, StripConsumer consumer )
+      throws IOException {
+    if( stripHeight <= 0 ) {
+      throw new IllegalArgumentException(
+          "Invalid strip height " + stripHeight );
+    }
+
+    final var doc = getDocument();
+    final View view;
+    final Dimension size;
+    lockForReading( doc );
+    try {
+      view = getViewportView();
+      size = getContentSize();
+    } finally {
+      unlockForReading( doc );
+    }
+    if( view == null || size.width <= 0 || size.height <= 0 ) {
+      return false;
+    }
+
+    final var page = new Rectangle( size );
+    final var buffer = new BufferedImage(
+        size.width, Math.min( stripHeight, size.height ),
+        BufferedImage.TYPE_INT_RGB );
+    for( int y = 0; y < size.height; y += buffer.getHeight() ) {
+      final int h = Math.min( buffer.getHeight(), size.height - y );
+      lockForReading( doc );
+      try {
+        if( getDocument() != doc || getViewportView() != view
+            || !size.equals( getContentSize() ) ) {
+          throw new ConcurrentModificationException(
+              "The content has changed during rendering" );
+        }
+        final var g = buffer.createGraphics();
+        try {
+          // the same black background as a fresh image has
+          g.setBackground( Color.BLACK );
+          g.clearRect( 0, 0, size.width, h );
+          g.translate( 0, -y );
+          g.setClip( 0, y, size.width, h );
+          view.paint( g, page );
+        } finally {
+          g.dispose();
+        }
+      } finally {
+        unlockForReading( doc );
+      }
+      consumer.accept( h == buffer.getHeight()
+                           ? buffer
+                           : buffer.getSubimage( 0, 0, size.width, h ), y );
+    }
+    return true;
+  }
+
+  /**
+   * Renders current content to a PNG image written to the stream. The image
+   * is painted and encoded in strips, so pages of any height may be written
+   * with a small amount of memory. The stream is not closed.
+   *
+   * @param out the output stream
+   * @return true when the image was written, false when there is no content
+   * @throws IOException when the image cannot be written
+   * @see #renderContent(int, StripConsumer)
+   */
+  public boolean renderContent( OutputStream out ) throws IOException {
+    final var size = getContentSize();
+    if( size == null || size.width <= 0 || size.height <= 0 ) {
+      return false;
+    }
+
+    // about 4 MB of pixels per strip
+    final int stripHeight = Math.max( 1, (1 << 20) / size.width );
+    try( final var png = new PngStripWriter( out, size.width, size.height ) ) {
+      return renderContent( stripHeight, png );
+    }
+  }
+
+  /**
+   * Finds the view of the viewport box in the view tree of this pane. The
+   * viewport remembered by the view factory is not used, the factory is
+   * shared by all the panes.
+   */
+  private View getViewportView() {
+    View view = getUI().getRootView( this );
+    while( view != null && !(view instanceof ViewportView) ) {
+      view = view.getViewCount() > 0 ? view.getView( 0 ) : null;
+    }
+    return view;
+  }
+
+  private static void lockForReading( Document doc ) {
+    if( doc instanceof AbstractDocument ) {
+      ((AbstractDocument) doc).readLock();
+    }
+  }
+
+  private static void unlockForReading( Document doc ) {
+    if( doc instanceof AbstractDocument ) {
+      ((AbstractDocument) doc).readUnlock();
+    }
+  }
+
   @Override
   public void setText( String t ) {
     try {
@@ -334,48 +574,54 @@ public class BrowserPane extends JEditorPane {
 
   @Override
   protected InputStream getStream( URL page ) throws IOException {
+    if( SharedHttpClient.isHttp( page ) ) {
+      final PageFetcher.Page response;
+      try {
+        response = fetchPage( page ).join();
+      } catch( CompletionException e ) {
+        throw (IOException) e.getCause();
+      }
+      invokeOnEventDispatchThread( () -> handleConnectionProperties(
+          response.getContentType(), response.getURL(),
+          response.getHeaders() ) );
+      return response.getInputStream();
+    }
+
     final URLConnection conn = setConnectionProperties( page.openConnection() );
     // http://stackoverflow.com/questions/875467/java-client-certificates-over-https-ssl
 
-   if( conn instanceof HttpURLConnection ) {
-      HttpURLConnection hconn = (HttpURLConnection) conn;
-      hconn.setInstanceFollowRedirects( false );
-      Object postData = getPostData();
-      if( postData != null ) {
-        handlePostData( hconn, postData );
-      }
-      int response = hconn.getResponseCode();
-      boolean redirect = (response >= 300 && response <= 399);
-
-      /*
-       * In the case of a redirect, we want to actually change the URL
-       * that was input to the new, redirected URL
-       */
-      if( redirect ) {
-        String loc = conn.getHeaderField( "Location" );
-        if( loc.startsWith( "http" ) ) {
-          page = new URL( loc );
-        }
-        else {
-          page = new URL( page, loc );
-        }
-        return getStream( page );
-      }
-    }
+    final String type = conn.getContentType();
+    final Map<String, List<String>> header = conn.getHeaderFields();
+    invokeOnEventDispatchThread(
+        () -> handleConnectionProperties( type, conn.getURL(), header ) );
+    return conn.getInputStream();
+  }
 
-    // Connection properties handler should be forced to run on EDT,
-    // as it instantiates the EditorKit.
+  /**
+   * Runs a task on EDT and waits for it. Connection properties handler
+   * should be forced to run on EDT, as it instantiates the EditorKit.
+   */
+  private static void invokeOnEventDispatchThread( Runnable task ) {
     if( SwingUtilities.isEventDispatchThread() ) {
-      handleConnectionProperties( conn );
+      task.run();
     }
     else {
       try {
-        SwingUtilities.invokeAndWait( () -> handleConnectionProperties( conn ) );
+        SwingUtilities.invokeAndWait( task );
       } catch( InterruptedException | InvocationTargetException e ) {
         throw new RuntimeException( e );
       }
     }
-    return conn.getInputStream();
+  }
+
+  /**
+   * Starts fetching a http(s) page. The future completes when the response
+   * headers arrive, the body is streamed while the page is being read.
+   */
+  private CompletableFuture<PageFetcher.Page> fetchPage( URL page ) {
+    final Object postData = getPostData();
+    return PageFetcher.getInstance().fetch(
+        page, postData == null ? null : postData.toString(), Constants.USER_AGENT );
   }
 
   @Override
@@ -393,30 +639,39 @@ public class BrowserPane extends JEditorPane {
     if( (oldPage == null) || !oldPage.sameFile( newPage ) || (postData != null) ) {
       // different url or POST method, load the new content
 
-      final InputStream in = getStream( newPage );
-      // editor kit is set according to content type
-      EditorKit kit = getEditorKit();
-
-      if( kit == null ) {
-        UIManager.getLookAndFeel().provideErrorFeedback( this );
+      // a newer page supersedes the load in progress
+      final long gen = navigation.next();
+
+      if( SharedHttpClient.isHttp( newPage )
+          && getAsynchronousLoadPriority( getDocument() ) >= 0 ) {
+        // asynchronous load: nothing waits for the network, the document is
+        // created on EDT once the response headers arrive
+        final CompletableFuture<PageFetcher.Page> fetch = fetchPage( newPage );
+        navigation.attach( gen, fetch );
+        fetch.whenComplete( ( response, e ) -> {
+          if( e == null
+              && !navigation.attach( gen, response.getInputStream() ) ) {
+            return; // superseded, the stream has been closed
+          }
+          SwingUtilities.invokeLater( () -> {
+            if( !navigation.isCurrent( gen ) ) {
+              return;
+            }
+            if( e != null ) {
+              UIManager.getLookAndFeel().provideErrorFeedback( this );
+            }
+            else {
+              handleConnectionProperties( response.getContentType(),
+                                          response.getURL(),
+                                          response.getHeaders() );
+              startLoading( gen, newPage, oldPage, response.getInputStream(),
+                            true );
+            }
+          } );
+        } );
       }
       else {
-        document = createDocument( kit, newPage );
-
-        int p = getAsynchronousLoadPriority( document );
-
-        if( p < 0 ) {
-          // load synchro
-          loadPage( newPage, oldPage, in, document );
-        }
-        else {
-          // load asynchro
-          Thread t = new Thread(
-              () -> loadPage( newPage, oldPage, in, document )
-          );
-          t.setDaemon( true );
-          t.start();
-        }
+        startLoading( gen, newPage, oldPage, getStream( newPage ), false );
       }
     }
     else if( oldPage.sameFile( newPage ) ) {
@@ -427,30 +682,102 @@ public class BrowserPane extends JEditorPane {
     }
   }
 
-  private void loadPage( final URL newPage, final URL oldPage,
-                         final InputStream in, final Document doc ) {
+  /**
+   * Creates the document for a page and reads it.
+   *
+   * @param background true to always read the stream on the navigation
+   *                   executor; used for the streams fetched asynchronously,
+   *                   which are read on EDT otherwise, as the kit and the
+   *                   document may change with the content type of the
+   *                   response
+   */
+  private void startLoading( final long gen, final URL newPage,
+                             final URL oldPage, final InputStream in,
+                             final boolean background ) {
+    // editor kit is set according to content type
+    EditorKit kit = getEditorKit();
+
+    if( kit == null ) {
+      UIManager.getLookAndFeel().provideErrorFeedback( this );
+      try {
+        in.close();
+      } catch( IOException ignored ) {
+      }
+    }
+    else {
+      final Document doc = createDocument( kit, newPage );
+      document = doc;
+
+      int p = getAsynchronousLoadPriority( doc );
+
+      if( p < 0 && !background ) {
+        // load synchro
+        loadPage( gen, newPage, oldPage, in, doc, false );
+      }
+      else {
+        // load asynchro
+        navigation.execute(
+            gen, () -> loadPage( gen, newPage, oldPage, in, doc, true ) );
+      }
+    }
+  }
+
+  private void loadPage( final long gen, final URL newPage,
+                         final URL oldPage, final InputStream in,
+                         final Document doc, final boolean background ) {
     boolean done = false;
     try {
+      // the stream is closed when a newer page is requested, which stops
+      // reading
+      if( !navigation.attach( gen, in ) ) {
+        return;
+      }
 
-      synchronized( this ) {
-        if( loadingStream != null ) {
-          // we are loading asynchronously, so we need to cancel
-          // the old stream.
-          loadingStream.close();
-          loadingStream = null;
+      // when loading asynchronously, show the document while its content
+      // is being inserted (see SwingBoxEditorKit.getStreamingBatchSize());
+      // the view tree must be built before the first batch changes the
+      // element tree
+      final boolean async =
+          background && getAsynchronousLoadPriority( doc ) >= 0;
+      if( async ) {
+        try {
+          SwingUtilities.invokeAndWait( () -> {
+            if( navigation.isCurrent( gen ) ) {
+              setDocument( doc );
+            }
+          } );
+        } catch( InterruptedException e ) {
+          throw new CancellationException();
+        } catch( InvocationTargetException e ) {
+          throw new RuntimeException( e.getCause() );
+        }
+        if( !navigation.isCurrent( gen ) ) {
+          return;
         }
-
-        loadingStream = in;
       }
-
       // read the content
-      read( loadingStream, doc );
+      read( in, doc );
+      if( !navigation.isCurrent( gen ) ) {
+        return;
+      }
       // set the document to the component
-      setDocument( doc );
+      if( background && !async ) {
+        SwingUtilities.invokeLater( () -> {
+          if( navigation.isCurrent( gen ) ) {
+            setDocument( doc );
+          }
+        } );
+      }
+      else if( !async ) {
+        setDocument( doc );
+      }
 
       final String reference = newPage.getRef();
       // Have to scroll after painted.
       SwingUtilities.invokeLater( () -> {
+        if( !navigation.isCurrent( gen ) ) {
+          return;
+        }
         // top of the pane
         scrollRectToVisible( new Rectangle( 0, 0, 1, 1 ) );
         if( reference != null ) {
@@ -461,23 +788,25 @@ public class BrowserPane extends JEditorPane {
       done = true;
 
     } catch( IOException ioe ) {
-      UIManager.getLookAndFeel().provideErrorFeedback( this );
+      // a superseded load fails on its closed stream
+      if( navigation.isCurrent( gen ) ) {
+        UIManager.getLookAndFeel().provideErrorFeedback( this );
+      }
+    } catch( CancellationException ignored ) {
+      // superseded by a newer page
     } finally {
-      synchronized( this ) {
-        if( loadingStream != null ) {
-          try {
-            loadingStream.close();
-          } catch( IOException e ) {
-            e.printStackTrace();
-          }
-        }
-        loadingStream = null;
+      try {
+        in.close();
+      } catch( IOException e ) {
+        e.printStackTrace();
       }
 
       if( done ) {
-        SwingUtilities.invokeLater(
-            () -> firePropertyChange( "page", oldPage, newPage )
-        );
+        SwingUtilities.invokeLater( () -> {
+          if( navigation.isCurrent( gen ) ) {
+            firePropertyChange( "page", oldPage, newPage );
+          }
+        } );
       }
     }
 
@@ -515,19 +844,17 @@ public class BrowserPane extends JEditorPane {
   /**
    * Handle URL connection properties (most notably, content type).
    */
-  private void handleConnectionProperties( URLConnection conn ) {
+  private void handleConnectionProperties( String type, URL url,
+                                           Map<String, List<String>> header ) {
     if( pageProperties == null ) {
       pageProperties = new Hashtable<>( 22 );
     }
 
-    String type = conn.getContentType();
     if( type != null ) {
       setContentType( type );
     }
 
-    pageProperties.put( Document.StreamDescriptionProperty, conn.getURL() );
-
-    Map<String, List<String>> header = conn.getHeaderFields();
+    pageProperties.put( Document.StreamDescriptionProperty, url );
 
     Set<String> keys = header.keySet();
     Object obj;
@@ -562,25 +889,12 @@ public class BrowserPane extends JEditorPane {
     // SwingBox : Mozilla/5.0 (compatible; SwingBox/1.x; Linux; U)
     // CSSBox/2.x (like Gecko)
 
-    conn.setRequestProperty(
-        "User-Agent",
-        "Mozilla/5.0 (compatible; SwingBox/1.x; Linux; U) CSSBox/4.x (like Gecko)"
-    );
+    conn.setRequestProperty( "User-Agent", Constants.USER_AGENT );
     conn.setRequestProperty( "Accept-Charset", "utf-8" );
 
     return conn;
   }
 
-  private void handlePostData( HttpURLConnection conn, Object postData )
-      throws IOException {
-    conn.setDoOutput( true );
-    conn.setRequestProperty( "Content-Type",
-                             "application/x-www-form-urlencoded" );
-    try(final var os = new DataOutputStream( conn.getOutputStream() ) ) {
-      os.writeBytes( (String) postData );
-    }
-  }
-
   @Override
   public void read( InputStream in, Object desc ) throws IOException {
     super.read( in, desc );
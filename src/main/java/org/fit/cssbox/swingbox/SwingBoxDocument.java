@@ -19,11 +19,18 @@
 package org.fit.cssbox.swingbox;
 
 import org.fit.cssbox.swingbox.util.Anchor;
+import org.fit.cssbox.swingbox.util.BoxAttributes;
 import org.fit.cssbox.swingbox.util.Constants;
 
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.Element;
+import javax.swing.text.Segment;
+import javax.swing.text.StyleContext;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
  * @author Peter Bielik
@@ -39,7 +46,7 @@ public class SwingBoxDocument extends DefaultStyledDocument
      */
     public SwingBoxDocument()
     {
-        super();
+        super(new BoxStyleContext());
         // we do not support any inserting, removing or replacing of string & no
         // filters
         setDocumentFilter(null);
@@ -60,19 +67,151 @@ public class SwingBoxDocument extends DefaultStyledDocument
         super.create(data);
     }
 
+    /**
+     * Tries to bind the existing element structure to the attributes of a new
+     * element list, which has been produced by a re-layout of the same
+     * document. This succeeds only when the new list describes exactly the same
+     * structure as the current one (the same elements in the same order with
+     * the same text content); in such case, the attributes of the existing
+     * elements (most notably the box references) are replaced and a change
+     * event is fired, so the views may reload their boxes. The element and view
+     * trees are kept.
+     * 
+     * @param data
+     *            the new element list
+     * @return true, if the document has been rebound; false, if the structure
+     *         differs and the document has not been modified (a full
+     *         {@link #create(ElementSpec[])} is required)
+     */
+    public boolean rebind(ElementSpec[] data)
+    {
+        try {
+            writeLock();
+            Element root = getDefaultRootElement();
+            if (root.getElementCount() == 0 || root.getElement(0).isLeaf())
+                return false;
+
+            // pair the existing elements (in pre-order) with the start tag and
+            // content specs; end tags do not create any element. Only the
+            // subtree of the delegated element is kept by the root, the
+            // remaining specs are skipped.
+            Element top = root.getElement(0);
+            Element[] elems = new Element[data.length];
+            Deque<Element> stack = new ArrayDeque<>();
+            stack.push(top);
+            Segment text = new Segment();
+            int depth = 0;
+            for (int i = 0; i < data.length && !stack.isEmpty(); i++)
+            {
+                ElementSpec spec = data[i];
+                Object name = spec.getAttributes().getAttribute(ElementNameAttribute);
+                if (depth == 0 && (spec.getType() != ElementSpec.StartTagType
+                        || !top.getName().equals(name)))
+                    continue;
+                if (spec.getType() == ElementSpec.EndTagType)
+                {
+                    depth--;
+                    continue;
+                }
+
+                Element elem = stack.pop();
+                if (name == null || !name.equals(elem.getName()))
+                    return false;
+                if (spec.getType() == ElementSpec.ContentType)
+                {
+                    if (!elem.isLeaf() || !sameText(elem, spec, text))
+                        return false;
+                }
+                else
+                {
+                    if (elem.isLeaf())
+                        return false;
+                    depth++;
+                }
+
+                for (int j = elem.getElementCount() - 1; j >= 0; j--)
+                    stack.push(elem.getElement(j));
+                elems[i] = elem;
+            }
+            if (!stack.isEmpty())
+                return false;
+
+            // the structure matches, replace the attributes
+            for (int i = 0; i < data.length; i++)
+            {
+                if (elems[i] != null)
+                    ((AbstractElement) elems[i]).addAttributes(data[i].getAttributes());
+            }
+
+            DefaultDocumentEvent evt = new DefaultDocumentEvent(0, getLength(), DocumentEvent.EventType.CHANGE);
+            evt.end();
+            fireChangedUpdate(evt);
+            return true;
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    private boolean sameText(Element elem, ElementSpec spec, Segment text)
+    {
+        int len = elem.getEndOffset() - elem.getStartOffset();
+        if (len != spec.getLength())
+            return false;
+        try {
+            getText(elem.getStartOffset(), len, text);
+        } catch (BadLocationException e) {
+            return false;
+        }
+        char[] src = spec.getArray();
+        int offs = spec.getOffset();
+        for (int i = 0; i < len; i++)
+        {
+            if (text.array[text.offset + i] != src[offs + i])
+                return false;
+        }
+        return true;
+    }
+
     @Override
     protected AbstractElement createDefaultRoot()
     {
         try {
             writeLock();
             BranchElement delegate = new DelegateElement(Constants.VIEWPORT);
-            delegate.addAttribute(Constants.ATTRIBUTE_ANCHOR_REFERENCE, new Anchor());
+            delegate.addAttribute(Constants.ATTRIBUTE_ANCHOR_REFERENCE, Anchor.INACTIVE);
             return delegate;
         } finally {
             writeUnlock();
         }
     }
 
+    /**
+     * The style context used by the document. The attribute sets of the
+     * elements are never shared: they refer to individual boxes, and the boxes
+     * of different layouts are equal (they compare by their order only), so
+     * sharing would bind the elements to the boxes of a previous layout. The
+     * immutable {@link BoxAttributes} are used directly, without copying.
+     */
+    private static class BoxStyleContext extends StyleContext
+    {
+        private static final long serialVersionUID = -3120745561092893014L;
+
+        @Override
+        protected int getCompressionThreshold()
+        {
+            return -1;
+        }
+
+        @Override
+        public synchronized AttributeSet addAttributes(AttributeSet old, AttributeSet attr)
+        {
+            // the box attributes are immutable, they need not be copied
+            if (attr instanceof BoxAttributes && ((BoxAttributes) attr).definesAll(old))
+                return attr;
+            return super.addAttributes(old, attr);
+        }
+    }
+
     /**
      * The Class DelegateElement.
      */
@@ -46,8 +46,11 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 public class SwingBoxEditorKit extends StyledEditorKit
 {
     private static final long serialVersionUID = -2774578978116020429L;
+    /** The default number of elements inserted to the document at once */
+    private static final int DEFAULT_STREAMING_BATCH_SIZE = 1024;
 
     private CSSBoxAnalyzer cbanalyzer;
+    private LayoutWorker layoutWorker;
     private ViewFactory vfactory;
     private JEditorPane component;
     private final MouseController mcontroller;
@@ -110,6 +113,15 @@ public class SwingBoxEditorKit extends StyledEditorKit
         c.removeMouseListener(mcontroller);
         c.removeMouseMotionListener(mcontroller);
         component = null;
+        synchronized (this)
+        {
+            // a new worker is created when a layout is needed again
+            if (layoutWorker != null)
+            {
+                layoutWorker.shutdown();
+                layoutWorker = null;
+            }
+        }
     }
 
     @Override
@@ -237,7 +249,9 @@ public class SwingBoxEditorKit extends StyledEditorKit
     }
 
     /**
-     * Updates layout, using new dimensions.
+     * Updates layout, using new dimensions. When the new layout produces the
+     * same element structure, the existing elements (and views) are only
+     * rebound to the new boxes, otherwise the document is rebuilt.
      * 
      * @param doc
      *            the document
@@ -249,10 +263,95 @@ public class SwingBoxEditorKit extends StyledEditorKit
     public void update(SwingBoxDocument doc, Dimension dim)
             throws IOException
     {
+        cancelUpdate();
         ContentReader rdr = new ContentReader();
-        List<ElementSpec> elements = rdr.update(dim, getCSSBoxAnalyzer());
+        CSSBoxAnalyzer analyzer = getCSSBoxAnalyzer();
+        List<ElementSpec> elements;
+        synchronized (analyzer)
+        {
+            elements = rdr.update(dim, analyzer);
+        }
         ElementSpec[] elementsArray = elements.toArray( new ElementSpec[0]);
-        doc.create(elementsArray);
+        // when only the geometry has changed, keep the element & view trees
+        if (!doc.rebind(elementsArray))
+            doc.create(elementsArray);
+    }
+
+    /**
+     * Updates layout, using new dimensions, in the background. The layout is
+     * computed on a worker thread and applied to the document on the event
+     * dispatch thread; a subsequent call cancels the layout that has not been
+     * applied yet, so only the latest dimension is used.
+     * 
+     * @param doc
+     *            the document
+     * @param dim
+     *            new dimension
+     * @see #update(SwingBoxDocument, Dimension)
+     */
+    public void updateLater(SwingBoxDocument doc, Dimension dim)
+    {
+        getLayoutWorker().schedule(doc, dim);
+    }
+
+    /**
+     * Updates layout for a new size of the view, in the background. Works like
+     * {@link #updateLater(SwingBoxDocument, Dimension)}, but the layout may be
+     * cancelled by {@link #cancelResize(SwingBoxDocument, Dimension)} when the
+     * size changes back.
+     * 
+     * @param doc
+     *            the document
+     * @param dim
+     *            new dimension
+     */
+    public void resizeLater(SwingBoxDocument doc, Dimension dim)
+    {
+        getLayoutWorker().scheduleResize(doc, dim);
+    }
+
+    /**
+     * Cancels the background layout started by
+     * {@link #resizeLater(SwingBoxDocument, Dimension)}, if it has not been
+     * applied yet. The layouts started by
+     * {@link #updateLater(SwingBoxDocument, Dimension)} are not cancelled but
+     * done for the current dimension.
+     * 
+     * @param doc
+     *            the document
+     * @param dim
+     *            the current dimension
+     */
+    public synchronized void cancelResize(SwingBoxDocument doc, Dimension dim)
+    {
+        if (layoutWorker != null)
+            layoutWorker.cancelResize(doc, dim);
+    }
+
+    /**
+     * Cancels the background layout started by
+     * {@link #updateLater(SwingBoxDocument, Dimension)}, if it has not been
+     * applied yet.
+     */
+    public synchronized void cancelUpdate()
+    {
+        if (layoutWorker != null)
+            layoutWorker.cancel();
+    }
+
+    private synchronized LayoutWorker getLayoutWorker()
+    {
+        CSSBoxAnalyzer cba = getCSSBoxAnalyzer();
+        if (layoutWorker == null || layoutWorker.getCSSBoxAnalyzer() != cba)
+        {
+            if (layoutWorker != null)
+            {
+                layoutWorker.cancel();
+                layoutWorker.shutdown();
+            }
+            layoutWorker = new LayoutWorker(cba);
+        }
+        return layoutWorker;
     }
 
     /**
@@ -368,8 +467,24 @@ public class SwingBoxEditorKit extends StyledEditorKit
             }
 
             DocumentSource docSource = new StreamDocumentSource(in, url, ctype);
-            elements = rdr.read(docSource, analyzer, dim);
-            String title = analyzer.getDocumentTitle();
+            // a background layout of the previous document is useless now
+            cancelUpdate();
+            // a document that is not shown yet is created at once, the
+            // batches would only produce more events
+            int batchSize = isShown(doc) ? getStreamingBatchSize() : 0;
+            String title;
+            synchronized (analyzer)
+            {
+                if (batchSize > 0)
+                {
+                    // the elements are inserted to the document while reading
+                    rdr.read(docSource, analyzer, dim, doc, batchSize);
+                    elements = null;
+                }
+                else
+                    elements = rdr.read(docSource, analyzer, dim);
+                title = analyzer.getDocumentTitle();
+            }
             doc.putProperty(Document.TitleProperty, title);
         } catch (IOException e)
         {
@@ -377,12 +492,48 @@ public class SwingBoxEditorKit extends StyledEditorKit
             throw e;
         }
 
-        ElementSpec[] elementsArray = elements.toArray( new ElementSpec[0]);
-        doc.create(elementsArray);
+        if (elements != null)
+        {
+            ElementSpec[] elementsArray = elements.toArray( new ElementSpec[0]);
+            doc.create(elementsArray);
+        }
 
         readFinish(url);
     }
 
+    /**
+     * Gets the number of elements inserted to the document at once when
+     * reading. The value is taken from the
+     * {@link Constants#DOCUMENT_STREAMING_BATCH_SIZE_PROPERTY} system property;
+     * zero or a negative value means that the whole document is created at
+     * once, after all the elements are read. The batches are only used when
+     * the document is already shown by the editor while it is being read.
+     * 
+     * @return the batch size
+     */
+    protected int getStreamingBatchSize()
+    {
+        String tmp = System.getProperty(
+                Constants.DOCUMENT_STREAMING_BATCH_SIZE_PROPERTY,
+                Constants.PROPERTY_NOT_SET);
+        if (!tmp.equals(Constants.PROPERTY_NOT_SET))
+        {
+            try
+            {
+                return Integer.parseInt(tmp);
+            } catch (NumberFormatException ignored)
+            {
+            }
+        }
+        return DEFAULT_STREAMING_BATCH_SIZE;
+    }
+
+    private boolean isShown(Document doc)
+    {
+        final JEditorPane c = component;
+        return c != null && c.getDocument() == doc;
+    }
+
     private void readError(URL url, Exception e)
     {
         if (component instanceof BrowserPane)
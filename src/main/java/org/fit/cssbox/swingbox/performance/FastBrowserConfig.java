@@ -33,13 +33,34 @@ import org.fit.cssbox.layout.BrowserConfig;
 import java.io.IOException;
 import java.net.URL;
 
+/**
+ * A browser configuration that fetches the HTTP resources through the
+ * {@link SharedHttpClient}. Every call creates a new document source, so the
+ * documents, style sheets and images may be fetched concurrently. Other URLs
+ * (files, jar entries, data URLs) are left to the default document source.
+ */
 public class FastBrowserConfig extends BrowserConfig {
-  private FastDocumentSource mDocumentSource;
-
+  @Override
   public DocumentSource createDocumentSource( final URL url )
       throws IOException {
-    return mDocumentSource == null ?
-        mDocumentSource = new FastDocumentSource( url ) :
-        mDocumentSource.setURL( url );
+    return SharedHttpClient.isHttp( url ) ?
+        new FastDocumentSource( url ) :
+        super.createDocumentSource( url );
+  }
+
+  @Override
+  public DocumentSource createDocumentSource(
+      final URL base, final String urlString ) {
+    try {
+      final var url = new URL( base, urlString );
+
+      if( SharedHttpClient.isHttp( url ) ) {
+        return new FastDocumentSource( url );
+      }
+    } catch( final IOException ignored ) {
+      // let the default source resolve (or report) the URL
+    }
+
+    return super.createDocumentSource( base, urlString );
   }
 }
@@ -27,24 +27,26 @@
  */
 package org.fit.cssbox.swingbox.performance;
 
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.cache.BasicHttpCacheStorage;
-import org.apache.http.impl.client.cache.CacheConfig;
-import org.apache.http.impl.client.cache.CachingHttpClients;
 import org.fit.cssbox.io.DocumentSource;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
-import java.util.concurrent.TimeUnit;
 
+/**
+ * A document source fetching a single HTTP resource through the
+ * {@link SharedHttpClient}. Each source holds its own response, so the
+ * sources may be used concurrently; closing the source returns the connection
+ * to the shared pool.
+ */
 public class FastDocumentSource extends DocumentSource {
-  private final CloseableHttpClient mClient;
+  private final URL mUrl;
 
-  private URL mUrl;
+  private CloseableHttpResponse mResponse;
   private InputStream mInputStream;
   private String mContentType = "";
 
@@ -52,37 +54,9 @@ public class FastDocumentSource extends DocumentSource {
     super( url );
     assert url != null;
 
-    mClient = createHttpClient();
     mUrl = url;
   }
 
-  public FastDocumentSource setURL(final URL url) {
-    mUrl = url;
-
-    return this;
-  }
-
-  private CloseableHttpClient createHttpClient() {
-    final var cacheLifetime = TimeUnit.HOURS.toSeconds( 1 );
-
-    final var cacheConfig =
-        CacheConfig.custom()
-                   .setMaxCacheEntries( 1000 )
-                   .setMaxObjectSize( 120 * 1024 )
-                   .setHeuristicCachingEnabled( true )
-                   .setHeuristicDefaultLifetime( cacheLifetime )
-                   .build();
-
-    final var cacheStore = new BasicHttpCacheStorage( cacheConfig );
-
-    final var builder =
-        CachingHttpClients.custom()
-                          .setCacheConfig( cacheConfig )
-                          .setHttpCacheStorage( cacheStore );
-
-    return builder.build();
-  }
-
   @Override
   public URL getURL() {
     return mUrl;
@@ -95,6 +69,10 @@ public class FastDocumentSource extends DocumentSource {
 
   @Override
   public InputStream getInputStream() throws IOException {
+    if( mInputStream != null ) {
+      return mInputStream;
+    }
+
     final URI uri;
 
     try {
@@ -103,11 +81,16 @@ public class FastDocumentSource extends DocumentSource {
       throw new IOException( e );
     }
 
-    final var httpGet = new HttpGet( uri );
-    final var response = mClient.execute( httpGet );
+    final var client = SharedHttpClient.getInstance().getClient();
+    final var response = client.execute( new HttpGet( uri ) );
+    mResponse = response;
 
     final var entity = response.getEntity();
-    entity.getContentType();
+
+    if( entity == null ) {
+      close();
+      throw new IOException( "No content: " + uri );
+    }
 
     final var contentType = ContentType.getOrDefault( entity );
     mContentType = contentType.getMimeType();
@@ -117,8 +100,14 @@ public class FastDocumentSource extends DocumentSource {
 
   @Override
   public void close() throws IOException {
-    if( mInputStream != null ) {
-      mInputStream.close();
+    try {
+      if( mInputStream != null ) {
+        mInputStream.close();
+      }
+    } finally {
+      if( mResponse != null ) {
+        mResponse.close();
+      }
     }
   }
 }
@@ -0,0 +1,603 @@
+/*
+ * Copyright 2020 White Magic Software, Ltd.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.fit.cssbox.swingbox.performance;
+
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Fetches the pages displayed by the browser panes without blocking. The
+ * pages are requested using a shared {@link HttpClient} (HTTP/2 when the
+ * server supports it, compressed transfer), the returned future completes as
+ * soon as the response headers arrive and the body is streamed while it is
+ * being received, so the page may be parsed while it is still downloading.
+ * <p>
+ * The pages are kept in the cache storage of the {@link SharedHttpClient}. A
+ * cached page is always revalidated using its validators (ETag,
+ * Last-Modified), an unchanged page is served from the cache after a single
+ * request without a body. A page reached through a redirect is stored under
+ * its final URL; the last known redirect target of a requested URL is
+ * remembered, so such a page is revalidated as well.
+ */
+public final class PageFetcher {
+  private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds( 30 );
+
+  /** The headers describing the transfer, not stored with a cached page */
+  private static final Set<String> TRANSFER_HEADERS = Set.of(
+      "content-encoding", "content-length", "transfer-encoding", "connection",
+      "keep-alive", "upgrade" );
+
+  /** The number of the redirect targets remembered */
+  private static final int MAX_REDIRECTS = 256;
+
+  private static final PageFetcher sInstance = new PageFetcher();
+
+  private final HttpClient mClient;
+
+  /** The last known redirect targets by the cache keys of the requests */
+  private final Map<String, URI> mRedirects = new LinkedHashMap<>( 64, 0.75f, true ) {
+    @Override
+    protected boolean removeEldestEntry( final Map.Entry<String, URI> eldest ) {
+      return size() > MAX_REDIRECTS;
+    }
+  };
+
+  private PageFetcher() {
+    mClient = HttpClient.newBuilder()
+                        .version( HttpClient.Version.HTTP_2 )
+                        .followRedirects( HttpClient.Redirect.NORMAL )
+                        .connectTimeout( CONNECT_TIMEOUT )
+                        .build();
+  }
+
+  /**
+   * Gets the fetcher shared by all the browser panes.
+   *
+   * @return the shared fetcher
+   */
+  public static PageFetcher getInstance() {
+    return sInstance;
+  }
+
+  /**
+   * Starts fetching a page. The redirects are followed.
+   *
+   * @param url       the page URL
+   * @param postData  the form data to be posted or {@code null} for a GET
+   *                  request
+   * @param userAgent the user agent string sent to the server
+   * @return the future page, it completes exceptionally with an
+   * {@link IOException} when the page cannot be fetched
+   */
+  public CompletableFuture<Page> fetch(
+      final URL url, final String postData, final String userAgent ) {
+    final URI uri;
+
+    try {
+      uri = url.toURI();
+    } catch( final URISyntaxException e ) {
+      return CompletableFuture.failedFuture( new IOException( e ) );
+    }
+
+    return fetch( uri, postData, userAgent, postData == null );
+  }
+
+  private CompletableFuture<Page> fetch(
+      final URI uri, final String postData, final String userAgent,
+      final boolean useCache ) {
+    final var builder = HttpRequest.newBuilder( uri )
+                                   .header( "User-Agent", userAgent )
+                                   .header( "Accept-Charset", "utf-8" )
+                                   .header( "Accept-Encoding", "gzip, deflate" );
+    // a page reached through a redirect is cached under its final URI
+    final var target = useCache ? getRedirectTarget( uri ) : uri;
+    final var cached = useCache ? lookup( target ) : null;
+
+    if( postData == null ) {
+      if( cached != null ) {
+        final var etag = cached.getFirstHeader( "ETag" );
+        final var lastModified = cached.getFirstHeader( "Last-Modified" );
+
+        if( etag != null ) {
+          builder.header( "If-None-Match", etag.getValue() );
+        }
+        if( lastModified != null ) {
+          builder.header( "If-Modified-Since", lastModified.getValue() );
+        }
+      }
+
+      builder.GET();
+    }
+    else {
+      builder.header( "Content-Type", "application/x-www-form-urlencoded" )
+             .POST( HttpRequest.BodyPublishers.ofString( postData ) );
+    }
+
+    final var requestDate = new Date();
+
+    try {
+      return mClient
+          .sendAsync( builder.build(), HttpResponse.BodyHandlers.ofInputStream() )
+          .thenCompose( response -> {
+            final var status = response.statusCode();
+
+            if( status == 304 && cached != null ) {
+              closeQuietly( response.body() );
+
+              // the validators were sent to another redirect target than the
+              // one of the cached page, ask again
+              if( !response.uri().equals( target ) ) {
+                return fetch( uri, null, userAgent, false );
+              }
+
+              return CompletableFuture.completedFuture(
+                  revalidated( target, cached, response, requestDate ) );
+            }
+
+            if( status >= 400 ) {
+              closeQuietly( response.body() );
+              return CompletableFuture.failedFuture( new IOException(
+                  "Server returned HTTP response code: " + status +
+                      " for URL: " + response.uri() ) );
+            }
+
+            return CompletableFuture.completedFuture(
+                received( uri, postData == null, response, requestDate ) );
+          } )
+          .exceptionallyCompose( e -> CompletableFuture.failedFuture(
+              toIOException( e ) ) );
+    } catch( final IllegalArgumentException e ) {
+      return CompletableFuture.failedFuture( new IOException( e ) );
+    }
+  }
+
+  private Page received(
+      final URI uri, final boolean get,
+      final HttpResponse<InputStream> response, final Date requestDate ) {
+    final var headers = new LinkedHashMap<String, List<String>>();
+
+    for( final var header : response.headers().map().entrySet() ) {
+      if( !header.getKey().startsWith( ":" ) ) {
+        headers.put( canonicalName( header.getKey() ), header.getValue() );
+      }
+    }
+
+    final var url = toURL( response.uri() );
+    final var encoding =
+        response.headers().firstValue( "Content-Encoding" ).orElse( null );
+    final var key = get && response.statusCode() == 200 &&
+        isStorable( response.headers() ) ? getCacheKey( response.uri() ) : null;
+
+    if( get ) {
+      setRedirectTarget( uri, key == null ? uri : response.uri() );
+    }
+
+    return new Page( url, headers, new BodyStream(
+        response.body(), encoding, key, headers, requestDate ) );
+  }
+
+  private Page revalidated(
+      final URI uri, final HttpCacheEntry cached,
+      final HttpResponse<InputStream> response, final Date requestDate ) {
+    // the headers of the 304 response replace the stored ones
+    final var headers = new LinkedHashMap<String, List<String>>();
+
+    for( final var header : cached.getAllHeaders() ) {
+      headers.computeIfAbsent( header.getName(), k -> new ArrayList<>() )
+             .add( header.getValue() );
+    }
+    for( final var header : response.headers().map().entrySet() ) {
+      final var name = header.getKey();
+
+      if( !name.startsWith( ":" ) &&
+          !TRANSFER_HEADERS.contains( name.toLowerCase( Locale.ROOT ) ) ) {
+        headers.put( canonicalName( name ), header.getValue() );
+      }
+    }
+
+    store( getCacheKey( uri ), new HttpCacheEntry(
+        requestDate, new Date(), cached.getStatusLine(), toHeaders( headers ),
+        cached.getResource(), cached.getVariantMap(),
+        cached.getRequestMethod() ) );
+
+    final var encoding = cached.getFirstHeader( "Content-Encoding" );
+    final InputStream body;
+
+    try {
+      body = cached.getResource().getInputStream();
+    } catch( final IOException e ) {
+      throw new UncheckedIOException( e );
+    }
+
+    return new Page( toURL( uri ), headers, new BodyStream(
+        body, encoding == null ? null : encoding.getValue(), null, null,
+        null ) );
+  }
+
+  /**
+   * Gets the URI a request was last redirected to.
+   *
+   * @return the redirect target or the URI itself when not redirected
+   */
+  private URI getRedirectTarget( final URI uri ) {
+    final var key = getCacheKey( uri );
+
+    if( key == null ) {
+      return uri;
+    }
+
+    synchronized( mRedirects ) {
+      return mRedirects.getOrDefault( key, uri );
+    }
+  }
+
+  private void setRedirectTarget( final URI uri, final URI target ) {
+    final var key = getCacheKey( uri );
+
+    if( key == null ) {
+      return;
+    }
+
+    synchronized( mRedirects ) {
+      if( key.equals( getCacheKey( target ) ) ) {
+        mRedirects.remove( key );
+      }
+      else {
+        mRedirects.put( key, target );
+      }
+    }
+  }
+
+  private static HttpCacheEntry lookup( final URI uri ) {
+    final var key = getCacheKey( uri );
+
+    if( key != null ) {
+      try {
+        final var entry = SharedHttpClient.getInstance()
+                                          .getCacheStorage()
+                                          .getEntry( key );
+
+        if( entry != null && entry.getResource() != null &&
+            !entry.hasVariants() && entry.getStatusCode() == 200 ) {
+          return entry;
+        }
+      } catch( final IOException ignored ) {
+      }
+    }
+
+    return null;
+  }
+
+  private static void store( final String key, final HttpCacheEntry entry ) {
+    if( key != null ) {
+      try {
+        SharedHttpClient.getInstance().getCacheStorage().putEntry( key, entry );
+      } catch( final IOException ignored ) {
+      }
+    }
+  }
+
+  /**
+   * Checks whether a response may be stored and revalidated later.
+   */
+  private static boolean isStorable( final java.net.http.HttpHeaders headers ) {
+    for( final var value : headers.allValues( "Cache-Control" ) ) {
+      if( value.toLowerCase( Locale.ROOT ).contains( "no-store" ) ) {
+        return false;
+      }
+    }
+
+    return headers.firstValue( "Vary" ).isEmpty() &&
+        (headers.firstValue( "ETag" ).isPresent() ||
+            headers.firstValue( "Last-Modified" ).isPresent());
+  }
+
+  /**
+   * Creates the key of a resource in the cache storage, as used by the
+   * caching client of the document sources.
+   */
+  private static String getCacheKey( final URI uri ) {
+    final var normalized = uri.normalize();
+    final var scheme = normalized.getScheme();
+    final var host = normalized.getHost();
+
+    if( scheme == null || host == null ) {
+      return null;
+    }
+
+    final var lowerScheme = scheme.toLowerCase( Locale.ROOT );
+    var port = normalized.getPort();
+
+    if( port == -1 ) {
+      port = "https".equals( lowerScheme ) ? 443 : 80;
+    }
+
+    final var path = normalized.getRawPath();
+    final var ret = new StringBuilder( lowerScheme )
+        .append( "://" ).append( host.toLowerCase( Locale.ROOT ) )
+        .append( ':' ).append( port )
+        .append( path == null || path.isEmpty() ? "/" : path );
+
+    if( normalized.getRawQuery() != null ) {
+      ret.append( '?' ).append( normalized.getRawQuery() );
+    }
+
+    return ret.toString();
+  }
+
+  private static Header[] toHeaders( final Map<String, List<String>> headers ) {
+    final var ret = new ArrayList<Header>();
+
+    for( final var header : headers.entrySet() ) {
+      for( final var value : header.getValue() ) {
+        ret.add( new BasicHeader( header.getKey(), value ) );
+      }
+    }
+
+    return ret.toArray( new Header[ 0 ] );
+  }
+
+  /**
+   * Converts a header name to the usual letter case, e.g. content-type to
+   * Content-Type (HTTP/2 uses lower case names).
+   */
+  private static String canonicalName( final String name ) {
+    final var ret = name.toCharArray();
+    var upper = true;
+
+    for( int i = 0; i < ret.length; i++ ) {
+      ret[ i ] = upper ? Character.toUpperCase( ret[ i ] ) : ret[ i ];
+      upper = ret[ i ] == '-';
+    }
+
+    return new String( ret );
+  }
+
+  private static URL toURL( final URI uri ) {
+    try {
+      return uri.toURL();
+    } catch( final IOException e ) {
+      throw new UncheckedIOException( e );
+    }
+  }
+
+  private static IOException toIOException( Throwable e ) {
+    while( e.getCause() != null && !(e instanceof IOException) ) {
+      e = e.getCause();
+    }
+
+    return e instanceof IOException ? (IOException) e : new IOException( e );
+  }
+
+  private static void closeQuietly( final InputStream in ) {
+    try {
+      in.close();
+    } catch( final IOException ignored ) {
+    }
+  }
+
+  /**
+   * A fetched page.
+   */
+  public static final class Page {
+    private final URL mUrl;
+    private final Map<String, List<String>> mHeaders;
+    private final InputStream mInputStream;
+
+    private Page(
+        final URL url, final Map<String, List<String>> headers,
+        final InputStream inputStream ) {
+      mUrl = url;
+      mHeaders = Collections.unmodifiableMap( headers );
+      mInputStream = inputStream;
+    }
+
+    /**
+     * Gets the page URL, i.e. the last location when redirected.
+     *
+     * @return the URL
+     */
+    public URL getURL() {
+      return mUrl;
+    }
+
+    /**
+     * Gets the value of the Content-Type header.
+     *
+     * @return the content type or {@code null} when not specified
+     */
+    public String getContentType() {
+      final var values = mHeaders.get( "Content-Type" );
+      return values == null || values.isEmpty() ? null : values.get( 0 );
+    }
+
+    /**
+     * Gets the response headers.
+     *
+     * @return the header names mapped to their values
+     */
+    public Map<String, List<String>> getHeaders() {
+      return mHeaders;
+    }
+
+    /**
+     * Gets the page body. The body is decoded while being read, reading it
+     * may block until the data arrives. The stream must be closed.
+     *
+     * @return the body stream
+     */
+    public InputStream getInputStream() {
+      return mInputStream;
+    }
+  }
+
+  /**
+   * The body of a page. The transfer encoding is decoded on the first read,
+   * so creating the stream never blocks. A body to be cached is stored when
+   * it has been read completely.
+   */
+  private static final class BodyStream extends InputStream {
+    private final InputStream mRaw;
+    private final String mEncoding;
+    private final String mCacheKey;
+    private final Map<String, List<String>> mHeaders;
+    private final Date mRequestDate;
+
+    private InputStream mIn;
+    private ByteArrayOutputStream mCopy;
+    private boolean mStored;
+
+    private BodyStream(
+        final InputStream raw, final String encoding, final String cacheKey,
+        final Map<String, List<String>> headers, final Date requestDate ) {
+      mRaw = raw;
+      mEncoding = encoding;
+      mCacheKey = cacheKey;
+      mHeaders = headers;
+      mRequestDate = requestDate;
+      mCopy = cacheKey == null ? null : new ByteArrayOutputStream( 8192 );
+    }
+
+    private InputStream in() throws IOException {
+      if( mIn == null ) {
+        final var encoding =
+            mEncoding == null ? "" : mEncoding.trim().toLowerCase( Locale.ROOT );
+
+        switch( encoding ) {
+          case "gzip":
+          case "x-gzip":
+            mIn = new GZIPInputStream( mRaw, 8192 );
+            break;
+          case "deflate":
+            mIn = new InflaterInputStream( mRaw );
+            break;
+          default:
+            mIn = mRaw;
+        }
+      }
+
+      return mIn;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final var ret = in().read();
+
+      if( ret == -1 ) {
+        finished();
+      }
+      else if( mCopy != null ) {
+        mCopy.write( ret );
+        checkCopySize();
+      }
+
+      return ret;
+    }
+
+    @Override
+    public int read( final byte[] b, final int off, final int len )
+        throws IOException {
+      final var ret = in().read( b, off, len );
+
+      if( ret == -1 ) {
+        finished();
+      }
+      else if( mCopy != null ) {
+        mCopy.write( b, off, ret );
+        checkCopySize();
+      }
+
+      return ret;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return mIn == null ? 0 : mIn.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      mCopy = null;
+
+      if( mIn != null ) {
+        mIn.close();
+      }
+      else {
+        mRaw.close();
+      }
+    }
+
+    private void checkCopySize() {
+      if( mCopy.size() > SharedHttpClient.MAX_OBJECT_SIZE ) {
+        mCopy = null;
+      }
+    }
+
+    private void finished() {
+      if( mCopy != null && !mStored ) {
+        mStored = true;
+
+        final var headers = new LinkedHashMap<String, List<String>>();
+
+        for( final var header : mHeaders.entrySet() ) {
+          if( !TRANSFER_HEADERS.contains(
+              header.getKey().toLowerCase( Locale.ROOT ) ) ) {
+            headers.put( header.getKey(), header.getValue() );
+          }
+        }
+
+        store( mCacheKey, new HttpCacheEntry(
+            mRequestDate, new Date(),
+            new BasicStatusLine( HttpVersion.HTTP_1_1, 200, "OK" ),
+            toHeaders( headers ), new HeapResource( mCopy.toByteArray() ),
+            Collections.emptyMap(), "GET" ) );
+        mCopy = null;
+      }
+    }
+  }
+}
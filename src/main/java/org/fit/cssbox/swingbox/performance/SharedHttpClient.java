@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 White Magic Software, Ltd.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.fit.cssbox.swingbox.performance;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.LaxRedirectStrategy;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.fit.cssbox.swingbox.util.Constants;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP client shared by all the document sources in the JVM. Every
+ * analyzer and browser pane fetches its documents, style sheets and images
+ * through the same pool of connections and the same HTTP cache, so a resource
+ * loaded by one pane is served from the cache to the others. The client is
+ * thread-safe.
+ * <p>
+ * The responses are cached by a {@link TieredHttpCacheStorage}. Its disk tier
+ * is kept in the {@code .cache/swingbox-http-cache} directory in the home
+ * directory of the user, accessible to the user only. The directory and size
+ * limits may be set using the {@link Constants#HTTP_CACHE_DIRECTORY_PROPERTY}
+ * (an empty value disables the disk tier),
+ * {@link Constants#HTTP_CACHE_MEMORY_SIZE_PROPERTY} and
+ * {@link Constants#HTTP_CACHE_DISK_SIZE_PROPERTY} system properties.
+ * <p>
+ * The connection limits may be set using the
+ * {@link Constants#HTTP_MAX_CONNECTIONS_PROPERTY} and
+ * {@link Constants#HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY} system properties,
+ * the limit of a particular host may be changed using
+ * {@link #setMaxConnectionsPerHost(URL, int)}.
+ */
+public final class SharedHttpClient {
+  private static final int DEFAULT_MAX_CONNECTIONS = 64;
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+  private static final long DEFAULT_CACHE_MEMORY_SIZE = 32L * 1024 * 1024;
+  private static final long DEFAULT_CACHE_DISK_SIZE = 256L * 1024 * 1024;
+  /** The largest response body stored in the cache */
+  static final long MAX_OBJECT_SIZE = 16L * 1024 * 1024;
+
+  private static final SharedHttpClient sInstance = new SharedHttpClient();
+
+  private final PoolingHttpClientConnectionManager mConnectionManager;
+  private final TieredHttpCacheStorage mCacheStorage;
+  private final CloseableHttpClient mClient;
+
+  private SharedHttpClient() {
+    mConnectionManager = new PoolingHttpClientConnectionManager();
+    mConnectionManager.setMaxTotal( (int) getLongProperty(
+        Constants.HTTP_MAX_CONNECTIONS_PROPERTY, DEFAULT_MAX_CONNECTIONS ) );
+    mConnectionManager.setDefaultMaxPerRoute( (int) getLongProperty(
+        Constants.HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY,
+        DEFAULT_MAX_CONNECTIONS_PER_HOST ) );
+
+    mCacheStorage = new TieredHttpCacheStorage(
+        getLongProperty( Constants.HTTP_CACHE_MEMORY_SIZE_PROPERTY,
+                         DEFAULT_CACHE_MEMORY_SIZE ),
+        getCacheDirectory(),
+        getLongProperty( Constants.HTTP_CACHE_DISK_SIZE_PROPERTY,
+                         DEFAULT_CACHE_DISK_SIZE ) );
+
+    mClient = createHttpClient( mConnectionManager, mCacheStorage );
+  }
+
+  /**
+   * Gets the client shared by all the document sources.
+   *
+   * @return the shared client
+   */
+  public static SharedHttpClient getInstance() {
+    return sInstance;
+  }
+
+  /**
+   * Checks whether a URL may be fetched using the shared client.
+   *
+   * @param url the URL
+   * @return {@code true} for the http and https URLs
+   */
+  public static boolean isHttp( final URL url ) {
+    final var protocol = url.getProtocol();
+
+    return "http".equalsIgnoreCase( protocol ) ||
+        "https".equalsIgnoreCase( protocol );
+  }
+
+  /**
+   * Gets the caching HTTP client. The client may not be closed.
+   *
+   * @return the client
+   */
+  public CloseableHttpClient getClient() {
+    return mClient;
+  }
+
+  /**
+   * Gets the pool of the connections used by the client.
+   *
+   * @return the connection manager
+   */
+  public PoolingHttpClientConnectionManager getConnectionManager() {
+    return mConnectionManager;
+  }
+
+  /**
+   * Gets the storage of the cached responses.
+   *
+   * @return the cache storage
+   */
+  public TieredHttpCacheStorage getCacheStorage() {
+    return mCacheStorage;
+  }
+
+  /**
+   * Changes the maximal number of concurrent connections to the host of the
+   * given URL.
+   *
+   * @param url the URL identifying the host (the scheme, host and port)
+   * @param max the maximal number of connections
+   */
+  public void setMaxConnectionsPerHost( final URL url, final int max ) {
+    final var port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    final var host = new HttpHost( url.getHost(), port, url.getProtocol() );
+    mConnectionManager.setMaxPerRoute( new HttpRoute( host ), max );
+  }
+
+  private static CloseableHttpClient createHttpClient(
+      final PoolingHttpClientConnectionManager connectionManager,
+      final TieredHttpCacheStorage cacheStore ) {
+    final var cacheLifetime = TimeUnit.HOURS.toSeconds( 1 );
+
+    final var cacheConfig =
+        CacheConfig.custom()
+                   .setMaxObjectSize( MAX_OBJECT_SIZE )
+                   .setHeuristicCachingEnabled( true )
+                   .setHeuristicDefaultLifetime( cacheLifetime )
+                   .build();
+
+    final var builder =
+        CachingHttpClients.custom()
+                          .setCacheConfig( cacheConfig )
+                          .setHttpCacheStorage( cacheStore )
+                          .setConnectionManager( connectionManager )
+                          .setConnectionManagerShared( true )
+                          .setRedirectStrategy( LaxRedirectStrategy.INSTANCE );
+
+    return builder.build();
+  }
+
+  private static File getCacheDirectory() {
+    final var value = System.getProperty(
+        Constants.HTTP_CACHE_DIRECTORY_PROPERTY, Constants.PROPERTY_NOT_SET );
+
+    if( value.equals( Constants.PROPERTY_NOT_SET ) ) {
+      // a per-user location, the shared temporary directory would expose the
+      // cached pages to the other users
+      final var home = System.getProperty( "user.home" );
+
+      return home == null || home.isBlank()
+          ? null
+          : new File( new File( home, ".cache" ), "swingbox-http-cache" );
+    }
+
+    return value.isBlank() ? null : new File( value );
+  }
+
+  private static long getLongProperty( final String name, final long def ) {
+    final var value =
+        System.getProperty( name, Constants.PROPERTY_NOT_SET );
+
+    if( !value.equals( Constants.PROPERTY_NOT_SET ) ) {
+      try {
+        final var ret = Long.parseLong( value );
+
+        if( ret > 0 ) {
+          return ret;
+        }
+      } catch( final NumberFormatException ignored ) {
+      }
+    }
+
+    return def;
+  }
+}
@@ -0,0 +1,838 @@
+/*
+ * Copyright 2020 White Magic Software, Ltd.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.fit.cssbox.swingbox.performance;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HTTP cache storage with two tiers: a bounded in-memory tier holding the
+ * recently used entries and a persistent tier holding one file per entry in
+ * a cache directory. Both tiers are bounded by the size of the cached bodies;
+ * the least recently used entries are evicted first. The entry files are read
+ * using file channels, the bodies that do not fit the memory tier are
+ * streamed directly from the file. The index of the directory is recovered on
+ * startup, so the cached resources survive a restart of the application.
+ * <p>
+ * The cached pages may be private, so the directory is made accessible to
+ * its owner only. A directory or an entry file that belongs to another user
+ * is never used.
+ */
+public class TieredHttpCacheStorage implements HttpCacheStorage {
+  /** The file name suffix of the entry files */
+  private static final String ENTRY_SUFFIX = ".entry";
+  /** The file name suffix of the entry files being written */
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int MAGIC = 0x53424843;
+  private static final int VERSION = 1;
+  /** The size of the fixed file header (magic, version, metadata length) */
+  private static final int HEADER_SIZE = 12;
+  /** The estimated size of an entry without the body */
+  private static final int ENTRY_SIZE = 1024;
+
+  /** The permissions of the cache directory on the POSIX file systems */
+  private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS =
+      PosixFilePermissions.fromString( "rwx------" );
+
+  private static final AtomicLong sTempCounter = new AtomicLong();
+  /** Closes the files of the streamed bodies no longer referenced */
+  private static final Cleaner sCleaner = Cleaner.create();
+
+  private final long mMaxMemorySize;
+  private final long mMaxMemoryObjectSize;
+  private final Path mDirectory;
+  private final long mMaxDiskSize;
+  /** The user owning the directory and the entry files */
+  private UserPrincipal mOwner;
+
+  private final LinkedHashMap<String, HttpCacheEntry> mMemory =
+      new LinkedHashMap<>( 64, 0.75f, true );
+  private final LinkedHashMap<String, DiskEntry> mDisk =
+      new LinkedHashMap<>( 256, 0.75f, true );
+  private long mMemorySize;
+  private long mDiskSize;
+
+  private long mMemoryHits;
+  private long mDiskHits;
+  private long mMisses;
+
+  /**
+   * Creates a new storage. The index of the existing entries in the
+   * directory is recovered; when the directory cannot be used or belongs to
+   * another user, only the memory tier is used.
+   *
+   * @param maxMemorySize the size limit of the memory tier in bytes
+   * @param directory     the cache directory or {@code null} for no disk tier
+   * @param maxDiskSize   the size limit of the disk tier in bytes
+   */
+  public TieredHttpCacheStorage(
+      final long maxMemorySize, final File directory, final long maxDiskSize ) {
+    mMaxMemorySize = maxMemorySize;
+    // a single entry may not take over the whole memory tier
+    mMaxMemoryObjectSize = maxMemorySize / 8;
+    mMaxDiskSize = maxDiskSize;
+    mDirectory = directory == null ? null : openDirectory( directory.toPath() );
+  }
+
+  /**
+   * Gets the cache directory.
+   *
+   * @return the directory or {@code null} when the disk tier is not used
+   */
+  public File getDirectory() {
+    return mDirectory == null ? null : mDirectory.toFile();
+  }
+
+  @Override
+  public void putEntry( final String key, final HttpCacheEntry entry )
+      throws IOException {
+    final var resource = entry.getResource();
+    final var length = resource == null ? 0 : resource.length();
+
+    synchronized( this ) {
+      removeMemory( key );
+
+      if( length <= mMaxMemoryObjectSize && resource instanceof HeapResource ) {
+        putMemory( key, entry, length );
+      }
+    }
+
+    if( mDirectory != null && length <= mMaxDiskSize ) {
+      writeDisk( key, entry );
+    }
+  }
+
+  @Override
+  public HttpCacheEntry getEntry( final String key ) throws IOException {
+    final DiskEntry diskEntry;
+
+    synchronized( this ) {
+      final var entry = mMemory.get( key );
+
+      if( entry != null ) {
+        mMemoryHits++;
+        // keeps the entry file from being evicted before the less used ones
+        mDisk.get( key );
+        return entry;
+      }
+
+      diskEntry = mDisk.get( key );
+
+      if( diskEntry == null ) {
+        mMisses++;
+        return null;
+      }
+    }
+
+    final var entry = readDisk( key, diskEntry );
+
+    synchronized( this ) {
+      if( entry == null ) {
+        mMisses++;
+
+        if( mDisk.get( key ) == diskEntry ) {
+          removeDisk( key );
+        }
+
+        return null;
+      }
+
+      mDiskHits++;
+      final var resource = entry.getResource();
+
+      if( resource instanceof HeapResource && !mMemory.containsKey( key ) ) {
+        putMemory( key, entry, resource.length() );
+      }
+    }
+
+    touch( diskEntry );
+    return entry;
+  }
+
+  @Override
+  public void removeEntry( final String key ) {
+    synchronized( this ) {
+      removeMemory( key );
+      removeDisk( key );
+    }
+  }
+
+  @Override
+  public synchronized void updateEntry(
+      final String key, final HttpCacheUpdateCallback callback )
+      throws IOException {
+    // the lock keeps the update atomic with respect to the other updates
+    final var existing = getEntry( key );
+    final var updated = callback.update( existing );
+
+    if( updated == null ) {
+      removeEntry( key );
+    }
+    else {
+      putEntry( key, updated );
+    }
+  }
+
+  /**
+   * Gets the estimated size of the memory tier.
+   *
+   * @return the size in bytes
+   */
+  public synchronized long getMemorySize() {
+    return mMemorySize;
+  }
+
+  /**
+   * Gets the size of the bodies stored in the disk tier.
+   *
+   * @return the size in bytes
+   */
+  public synchronized long getDiskSize() {
+    return mDiskSize;
+  }
+
+  /**
+   * Gets the number of entries stored in the disk tier.
+   *
+   * @return the entry count
+   */
+  public synchronized int getDiskEntryCount() {
+    return mDisk.size();
+  }
+
+  /**
+   * Gets the number of requests served from the memory tier.
+   *
+   * @return the hit count
+   */
+  public synchronized long getMemoryHitCount() {
+    return mMemoryHits;
+  }
+
+  /**
+   * Gets the number of requests served from the disk tier.
+   *
+   * @return the hit count
+   */
+  public synchronized long getDiskHitCount() {
+    return mDiskHits;
+  }
+
+  /**
+   * Gets the number of requests for entries not present in the storage.
+   *
+   * @return the miss count
+   */
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TieredHttpCacheStorage[memory: " + mMemory.size() + " entries, " +
+        mMemorySize + "/" + mMaxMemorySize + ", disk: " + mDisk.size() +
+        " entries, " + mDiskSize + "/" + mMaxDiskSize + ", memory hits: " +
+        mMemoryHits + ", disk hits: " + mDiskHits + ", misses: " + mMisses +
+        "]";
+  }
+
+  //=========================================================================
+
+  private void putMemory(
+      final String key, final HttpCacheEntry entry, final long length ) {
+    mMemory.put( key, entry );
+    mMemorySize += ENTRY_SIZE + length;
+
+    final var it = mMemory.entrySet().iterator();
+
+    while( mMemorySize > mMaxMemorySize && it.hasNext() ) {
+      final var oldest = it.next();
+      it.remove();
+      mMemorySize -= ENTRY_SIZE + lengthOf( oldest.getValue() );
+    }
+  }
+
+  private void removeMemory( final String key ) {
+    final var old = mMemory.remove( key );
+
+    if( old != null ) {
+      mMemorySize -= ENTRY_SIZE + lengthOf( old );
+    }
+  }
+
+  private static long lengthOf( final HttpCacheEntry entry ) {
+    final var resource = entry.getResource();
+    return resource == null ? 0 : resource.length();
+  }
+
+  //=========================================================================
+
+  private Path openDirectory( final Path directory ) {
+    try {
+      secureDirectory( directory );
+      recoverIndex( directory );
+      return directory;
+    } catch( final IOException | SecurityException |
+                   UnsupportedOperationException e ) {
+      return null;
+    }
+  }
+
+  /**
+   * Creates the directory accessible to the current user only, or checks
+   * that an existing directory belongs to the current user and restricts its
+   * permissions.
+   *
+   * @throws IOException when the directory cannot be created or belongs to
+   *                     another user
+   */
+  private void secureDirectory( final Path directory ) throws IOException {
+    final var posix = directory.getFileSystem()
+                               .supportedFileAttributeViews()
+                               .contains( "posix" );
+
+    if( Files.notExists( directory, LinkOption.NOFOLLOW_LINKS ) ) {
+      final var parent = directory.toAbsolutePath().getParent();
+
+      if( parent != null ) {
+        Files.createDirectories( parent );
+      }
+
+      if( posix ) {
+        Files.createDirectory( directory, PosixFilePermissions.asFileAttribute(
+            DIRECTORY_PERMISSIONS ) );
+      }
+      else {
+        Files.createDirectory( directory );
+      }
+    }
+
+    if( !Files.isDirectory( directory, LinkOption.NOFOLLOW_LINKS ) ) {
+      throw new IOException( "Not a directory: " + directory );
+    }
+
+    mOwner = directory.getFileSystem()
+                      .getUserPrincipalLookupService()
+                      .lookupPrincipalByName( System.getProperty( "user.name" ) );
+
+    if( !mOwner.equals(
+        Files.getOwner( directory, LinkOption.NOFOLLOW_LINKS ) ) ) {
+      throw new IOException(
+          "The cache directory belongs to another user: " + directory );
+    }
+
+    if( posix ) {
+      Files.setPosixFilePermissions( directory, DIRECTORY_PERMISSIONS );
+    }
+  }
+
+  /**
+   * Rebuilds the index from the entry files found in the directory. The
+   * modification time of the files gives the order of their last use. The
+   * unfinished and broken files are removed.
+   */
+  private void recoverIndex( final Path directory ) throws IOException {
+    final List<DiskEntry> found = new ArrayList<>();
+
+    try( final var files = Files.newDirectoryStream( directory ) ) {
+      for( final var file : files ) {
+        final var name = file.getFileName().toString();
+
+        if( name.endsWith( TEMP_SUFFIX ) ) {
+          Files.deleteIfExists( file );
+        }
+        else if( name.endsWith( ENTRY_SUFFIX ) ) {
+          final var entry = readIndexEntry( file );
+
+          if( entry == null ) {
+            Files.deleteIfExists( file );
+          }
+          else {
+            found.add( entry );
+          }
+        }
+      }
+    }
+
+    found.sort( Comparator.comparingLong( e -> e.mLastUsed ) );
+
+    synchronized( this ) {
+      for( final var entry : found ) {
+        mDisk.put( entry.mKey, entry );
+        mDiskSize += entry.mSize;
+      }
+
+      evictDisk();
+    }
+  }
+
+  private DiskEntry readIndexEntry( final Path file ) {
+    try {
+      if( !Files.isRegularFile( file, LinkOption.NOFOLLOW_LINKS ) ||
+          !mOwner.equals( Files.getOwner( file, LinkOption.NOFOLLOW_LINKS ) ) ) {
+        return null;
+      }
+    } catch( final IOException e ) {
+      return null;
+    }
+
+    try( final var channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+      final var meta = readMetadata( channel );
+
+      if( meta == null ) {
+        return null;
+      }
+
+      final var key = meta.readUTF();
+      final var lastUsed = Files.getLastModifiedTime( file ).toMillis();
+
+      return new DiskEntry( key, file, channel.size(), lastUsed );
+    } catch( final IOException e ) {
+      return null;
+    }
+  }
+
+  private void writeDisk( final String key, final HttpCacheEntry entry ) {
+    final var file = mDirectory.resolve( fileName( key ) );
+    final var temp = mDirectory.resolve(
+        fileName( key ) + '.' + sTempCounter.incrementAndGet() + TEMP_SUFFIX );
+
+    try {
+      final var meta = new ByteArrayOutputStream( 512 );
+      writeMetadata( new DataOutputStream( meta ), key, entry );
+
+      try( final var out = new DataOutputStream( new BufferedOutputStream(
+          Files.newOutputStream( temp ) ) ) ) {
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.writeInt( meta.size() );
+        meta.writeTo( out );
+
+        final var resource = entry.getResource();
+
+        if( resource != null ) {
+          try( final var in = resource.getInputStream() ) {
+            in.transferTo( out );
+          }
+        }
+      }
+
+      Files.move( temp, file, StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE );
+
+      final var size = Files.size( file );
+
+      synchronized( this ) {
+        final var old = mDisk.remove( key );
+
+        if( old != null ) {
+          mDiskSize -= old.mSize;
+        }
+
+        mDisk.put( key, new DiskEntry(
+            key, file, size, System.currentTimeMillis() ) );
+        mDiskSize += size;
+        evictDisk();
+      }
+    } catch( final IOException e ) {
+      // the entry remains in the memory tier only
+      try {
+        Files.deleteIfExists( temp );
+      } catch( final IOException ignored ) {
+      }
+    }
+  }
+
+  private HttpCacheEntry readDisk( final String key, final DiskEntry diskEntry ) {
+    final FileChannel channel;
+
+    try {
+      channel = FileChannel.open( diskEntry.mFile, StandardOpenOption.READ );
+    } catch( final IOException e ) {
+      return null;
+    }
+
+    // the channel is kept open by a streamed body, so the body stays
+    // readable even when the file is replaced or evicted meanwhile
+    boolean streamed = false;
+
+    try {
+      final var meta = readMetadata( channel );
+
+      if( meta == null || !key.equals( meta.readUTF() ) ) {
+        return null;
+      }
+
+      final var requestDate = new Date( meta.readLong() );
+      final var responseDate = new Date( meta.readLong() );
+      final var version = new ProtocolVersion(
+          meta.readUTF(), meta.readInt(), meta.readInt() );
+      final var statusCode = meta.readInt();
+      final var reason = readNullableUTF( meta );
+      final var requestMethod = readNullableUTF( meta );
+
+      final var headers = new Header[ meta.readInt() ];
+
+      for( int i = 0; i < headers.length; i++ ) {
+        headers[ i ] = new BasicHeader( meta.readUTF(), meta.readUTF() );
+      }
+
+      final var variantCount = meta.readInt();
+      final Map<String, String> variants = new HashMap<>();
+
+      for( int i = 0; i < variantCount; i++ ) {
+        variants.put( meta.readUTF(), meta.readUTF() );
+      }
+
+      final var hasBody = meta.readBoolean();
+      final var offset = channel.position();
+      final var length = channel.size() - offset;
+      final Resource resource;
+
+      if( !hasBody ) {
+        resource = null;
+      }
+      else if( length <= mMaxMemoryObjectSize ) {
+        final var body = ByteBuffer.allocate( (int) length );
+
+        while( body.hasRemaining() ) {
+          if( channel.read( body ) < 0 ) {
+            return null;
+          }
+        }
+
+        resource = new HeapResource( body.array() );
+      }
+      else {
+        resource = new FileRegionResource( channel, offset, length );
+        streamed = true;
+      }
+
+      return new HttpCacheEntry(
+          requestDate, responseDate,
+          new BasicStatusLine( version, statusCode, reason ),
+          headers, resource, variants, requestMethod );
+    } catch( final IOException e ) {
+      return null;
+    } finally {
+      if( !streamed ) {
+        close( channel );
+      }
+    }
+  }
+
+  /**
+   * Reads the file header and the metadata. The channel is left positioned
+   * at the body.
+   *
+   * @return the metadata stream or {@code null} if the file is not an entry
+   */
+  private static DataInputStream readMetadata( final FileChannel channel )
+      throws IOException {
+    final var header = ByteBuffer.allocate( HEADER_SIZE );
+
+    while( header.hasRemaining() ) {
+      if( channel.read( header ) < 0 ) {
+        return null;
+      }
+    }
+
+    header.flip();
+
+    if( header.getInt() != MAGIC || header.getInt() != VERSION ) {
+      return null;
+    }
+
+    final var length = header.getInt();
+
+    if( length < 0 || length > channel.size() - HEADER_SIZE ) {
+      return null;
+    }
+
+    final var meta = ByteBuffer.allocate( length );
+
+    while( meta.hasRemaining() ) {
+      if( channel.read( meta ) < 0 ) {
+        return null;
+      }
+    }
+
+    return new DataInputStream( new ByteArrayInputStream( meta.array() ) );
+  }
+
+  private static void writeMetadata(
+      final DataOutputStream out, final String key, final HttpCacheEntry entry )
+      throws IOException {
+    final var status = entry.getStatusLine();
+    final var version = status.getProtocolVersion();
+
+    out.writeUTF( key );
+    out.writeLong( entry.getRequestDate().getTime() );
+    out.writeLong( entry.getResponseDate().getTime() );
+    out.writeUTF( version.getProtocol() );
+    out.writeInt( version.getMajor() );
+    out.writeInt( version.getMinor() );
+    out.writeInt( status.getStatusCode() );
+    writeNullableUTF( out, status.getReasonPhrase() );
+    writeNullableUTF( out, entry.getRequestMethod() );
+
+    final var headers = entry.getAllHeaders();
+    out.writeInt( headers.length );
+
+    for( final var header : headers ) {
+      out.writeUTF( header.getName() );
+      out.writeUTF( header.getValue() == null ? "" : header.getValue() );
+    }
+
+    final var variants = entry.getVariantMap();
+    out.writeInt( variants.size() );
+
+    for( final var variant : variants.entrySet() ) {
+      out.writeUTF( variant.getKey() );
+      out.writeUTF( variant.getValue() );
+    }
+
+    out.writeBoolean( entry.getResource() != null );
+  }
+
+  private static void writeNullableUTF(
+      final DataOutputStream out, final String value ) throws IOException {
+    out.writeBoolean( value != null );
+
+    if( value != null ) {
+      out.writeUTF( value );
+    }
+  }
+
+  private static String readNullableUTF( final DataInputStream in )
+      throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private void removeDisk( final String key ) {
+    final var old = mDisk.remove( key );
+
+    if( old != null ) {
+      mDiskSize -= old.mSize;
+      delete( old.mFile );
+    }
+  }
+
+  private void evictDisk() {
+    final var it = mDisk.values().iterator();
+
+    while( mDiskSize > mMaxDiskSize && it.hasNext() ) {
+      final var oldest = it.next();
+      it.remove();
+      mDiskSize -= oldest.mSize;
+      delete( oldest.mFile );
+    }
+  }
+
+  private static void close( final Closeable closeable ) {
+    try {
+      closeable.close();
+    } catch( final IOException ignored ) {
+    }
+  }
+
+  private static void delete( final Path file ) {
+    try {
+      Files.deleteIfExists( file );
+    } catch( final IOException ignored ) {
+    }
+  }
+
+  /**
+   * Records the use of an entry in the file modification time, so the order
+   * of use is known when recovering the index.
+   */
+  private static void touch( final DiskEntry entry ) {
+    try {
+      Files.setLastModifiedTime(
+          entry.mFile, FileTime.fromMillis( System.currentTimeMillis() ) );
+    } catch( final IOException ignored ) {
+    }
+  }
+
+  private static String fileName( final String key ) {
+    try {
+      final var digest = MessageDigest.getInstance( "SHA-1" )
+                                      .digest( key.getBytes( StandardCharsets.UTF_8 ) );
+      final var ret = new StringBuilder( digest.length * 2 + ENTRY_SUFFIX.length() );
+
+      for( final var b : digest ) {
+        ret.append( Character.forDigit( (b >> 4) & 0xf, 16 ) )
+           .append( Character.forDigit( b & 0xf, 16 ) );
+      }
+
+      return ret.append( ENTRY_SUFFIX ).toString();
+    } catch( final NoSuchAlgorithmException e ) {
+      throw new IllegalStateException( e );
+    }
+  }
+
+  /**
+   * An entry file known to the disk tier.
+   */
+  private static final class DiskEntry {
+    private final String mKey;
+    private final Path mFile;
+    private final long mSize;
+    private final long mLastUsed;
+
+    private DiskEntry(
+        final String key, final Path file, final long size, final long lastUsed ) {
+      mKey = key;
+      mFile = file;
+      mSize = size;
+      mLastUsed = lastUsed;
+    }
+  }
+
+  /**
+   * A body too large for the memory tier, streamed from its entry file. The
+   * file is opened when the entry is read and stays open until the resource
+   * is disposed or no longer referenced, so a later replacement or eviction
+   * of the entry does not change the body.
+   */
+  private static final class FileRegionResource implements Resource {
+    private static final long serialVersionUID = 1L;
+
+    private final transient FileChannel mChannel;
+    private final transient Cleaner.Cleanable mCleanable;
+    private final long mOffset;
+    private final long mLength;
+
+    private FileRegionResource(
+        final FileChannel channel, final long offset, final long length ) {
+      mChannel = channel;
+      mOffset = offset;
+      mLength = length;
+      mCleanable = sCleaner.register( this, () -> close( channel ) );
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      if( !mChannel.isOpen() ) {
+        throw new IOException( "The resource has been disposed" );
+      }
+
+      return new RegionInputStream( mChannel, mOffset, mOffset + mLength );
+    }
+
+    @Override
+    public long length() {
+      return mLength;
+    }
+
+    @Override
+    public void dispose() {
+      mCleanable.clean();
+    }
+  }
+
+  /**
+   * Reads a region of a file channel using positional reads, so several
+   * streams may read the same channel at once.
+   */
+  private static final class RegionInputStream extends InputStream {
+    private final FileChannel mChannel;
+    private final long mEnd;
+    private long mPosition;
+
+    private RegionInputStream(
+        final FileChannel channel, final long start, final long end ) {
+      mChannel = channel;
+      mPosition = start;
+      mEnd = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final var b = new byte[ 1 ];
+      return read( b, 0, 1 ) < 0 ? -1 : b[ 0 ] & 0xff;
+    }
+
+    @Override
+    public int read( final byte[] b, final int off, final int len )
+        throws IOException {
+      if( len == 0 ) {
+        return 0;
+      }
+
+      if( mPosition >= mEnd ) {
+        return -1;
+      }
+
+      final var n = mChannel.read( ByteBuffer.wrap(
+          b, off, (int) Math.min( len, mEnd - mPosition ) ), mPosition );
+
+      if( n < 0 ) {
+        return -1;
+      }
+
+      mPosition += n;
+      return n;
+    }
+
+    @Override
+    public long skip( final long n ) {
+      final var skipped = Math.max( 0, Math.min( n, mEnd - mPosition ) );
+      mPosition += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min( Integer.MAX_VALUE, mEnd - mPosition );
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import cz.vutbr.web.css.CSSException;
+import cz.vutbr.web.css.CSSFactory;
+import cz.vutbr.web.css.StyleSheet;
+import org.fit.cssbox.css.CSSNorm;
+import org.fit.cssbox.css.DOMAnalyzer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * The default (user agent) style sheets parsed once and shared by all the
+ * analyzers. The parsed style sheets are never modified by the analysis, so
+ * the same instances are added to every {@link DOMAnalyzer}. DOMAnalyzer
+ * accepts the style sheets as text only, so the parsed ones are put to its
+ * private style sheet list directly. The list is a member of the cssbox
+ * version SwingBox depends on; with a version that does not have it, this
+ * class fails to initialize with an {@link IllegalStateException}.
+ */
+public final class AgentStyleSheets
+{
+    /** The style sheet list of DOMAnalyzer */
+    private static final Field stylesField = findStylesField();
+
+    private AgentStyleSheets()
+    {
+    }
+
+    /**
+     * Adds the standard and the user agent style sheets
+     * ({@link CSSNorm#stdStyleSheet()}, {@link CSSNorm#userStyleSheet()}) to
+     * an analyzer.
+     *
+     * @param da
+     *            the analyzer
+     */
+    public static void addTo(DOMAnalyzer da)
+    {
+        final List<StyleSheet> sheets = Parsed.sheets;
+        if (sheets != null)
+            getStyles(da).addAll(sheets);
+        else
+        {
+            da.addStyleSheet(null, CSSNorm.stdStyleSheet(), DOMAnalyzer.Origin.AGENT);
+            da.addStyleSheet(null, CSSNorm.userStyleSheet(), DOMAnalyzer.Origin.AGENT);
+        }
+    }
+
+    /**
+     * Gets the style sheet list of an analyzer, so that parsed style sheets
+     * may be added to it.
+     *
+     * @param da
+     *            the analyzer
+     * @return the style sheet list
+     */
+    @SuppressWarnings("unchecked")
+    static List<StyleSheet> getStyles(DOMAnalyzer da)
+    {
+        try
+        {
+            return (Vector<StyleSheet>) stylesField.get(da);
+        } catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Field findStylesField()
+    {
+        try
+        {
+            Field f = DOMAnalyzer.class.getDeclaredField("styles");
+            if (f.getType() != Vector.class)
+                throw new NoSuchFieldException("styles is " + f.getType().getName());
+            f.setAccessible(true);
+            return f;
+        } catch (ReflectiveOperationException | RuntimeException e)
+        {
+            throw new IllegalStateException("DOMAnalyzer.styles is not accessible, unsupported cssbox version", e);
+        }
+    }
+
+    private static StyleSheet parse(String css) throws IOException, CSSException
+    {
+        StyleSheet ret = CSSFactory.parseString(css, null);
+        ret.setOrigin(StyleSheet.Origin.AGENT);
+        return ret;
+    }
+
+    /**
+     * The parsed style sheets, created on first use.
+     */
+    private static final class Parsed
+    {
+        static final List<StyleSheet> sheets = parseAll();
+
+        private static List<StyleSheet> parseAll()
+        {
+            try
+            {
+                return List.of(parse(CSSNorm.stdStyleSheet()), parse(CSSNorm.userStyleSheet()));
+            } catch (IOException | CSSException e)
+            {
+                return null;
+            }
+        }
+    }
+
+}
@@ -20,6 +20,7 @@ package org.fit.cssbox.swingbox.util;
 
 import org.w3c.dom.Node;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,10 +33,22 @@ import java.util.Map;
  */
 public class Anchor
 {
+    /**
+     * The anchor shared by all the boxes that are not a part of any link. It
+     * may not be modified.
+     */
+    public static final Anchor INACTIVE = new Anchor(Collections.<String, String>emptyMap());
+
     // a helper object for hyperlinks
     private boolean active;
     private final Map<String, String> properties;
 
+    private Anchor(Map<String, String> props)
+    {
+        active = false;
+        properties = props;
+    }
+
     /**
      * Instantiates a new anchor.
      * 
@@ -77,6 +90,8 @@ public class Anchor
      */
     public void setActive(boolean active)
     {
+        if (this == INACTIVE)
+            throw new UnsupportedOperationException("The inactive anchor is shared and may not be modified");
         this.active = active;
     }
 
@@ -109,6 +124,30 @@ public class Anchor
                 + active + ", Properties: " + properties.toString() + "]";
     }
     
+    /**
+     * Creates an active anchor for the given link element. The properties are
+     * read from the element attributes.
+     * 
+     * @param a
+     *            the "a" element
+     * @return the new anchor
+     */
+    public static Anchor forElement(org.w3c.dom.Element a)
+    {
+        Anchor anchor = new Anchor();
+        anchor.active = true;
+        anchor.properties.put(Constants.ELEMENT_A_ATTRIBUTE_HREF, a.getAttribute("href"));
+        anchor.properties.put(Constants.ELEMENT_A_ATTRIBUTE_NAME, a.getAttribute("name"));
+        anchor.properties.put(Constants.ELEMENT_A_ATTRIBUTE_TITLE, a.getAttribute("title"));
+        String target = a.getAttribute("target");
+        if ("".equals(target))
+        {
+            target = "_self";
+        }
+        anchor.properties.put(Constants.ELEMENT_A_ATTRIBUTE_TARGET, target);
+        return anchor;
+    }
+
     /**
      * Examines the given element and all its parent elements in order to find the "a" element.
      * @param e the child element to start with
@@ -0,0 +1,284 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import org.fit.cssbox.io.DocumentSource;
+import org.fit.cssbox.layout.BrowserConfig;
+import org.fit.cssbox.layout.ContentImage;
+import org.fit.cssbox.layout.ImageCache;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An image cache that loads the images in the background. The layout never
+ * waits for an image: when an image is requested for the first time, it
+ * starts being fetched and decoded on a small pool of image threads shared by
+ * all the caches and a 1x1 transparent placeholder is returned instead. The
+ * number of the threads limits both the concurrent requests and the images
+ * decoded at once. The images are loaded in parallel, each URL once. The
+ * views showing a placeholder register using
+ * {@link #whenLoaded(ContentImage, Runnable)} and are notified on the event
+ * dispatch thread when the image arrives; {@link ContentImage#reset()} makes
+ * the content take the loaded image from the cache then.
+ * <p>
+ * The loaded images keep their encoded data only and are decoded near the
+ * size they are drawn at; the decoded pixels are kept in the shared
+ * {@link DecodedImageCache}. The animated images are kept as toolkit images
+ * so that they are played. The images are kept until {@link #clear()} is
+ * called for a new document; the loads started for the previous document are
+ * cancelled then and their results are dropped.
+ */
+public class AsyncImageCache implements ImageCache
+{
+    /** The image used until the actual one is available */
+    private static final BufferedImage PLACEHOLDER = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+    /** The number of images fetched and decoded at once, as many as the connections per host */
+    private static final int IMAGE_THREADS = 6;
+    private static final ExecutorService executor = Executors.newFixedThreadPool(IMAGE_THREADS, r -> {
+        Thread t = new Thread(r, "SwingBox image");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BrowserConfig config;
+    private final Map<String, Image> images = new ConcurrentHashMap<>();
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    /** The images being loaded for the current document */
+    private Map<String, Load> pending = new HashMap<>();
+    /** The generation of the current document, incremented by {@link #clear()} */
+    private long generation;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param config
+     *            the configuration used for creating the image sources
+     */
+    public AsyncImageCache(BrowserConfig config)
+    {
+        this.config = config;
+    }
+
+    @Override
+    public void put(URL url, Image image)
+    {
+        images.put(url.toExternalForm(), image);
+    }
+
+    /**
+     * Gets an image. When the image has not been loaded yet, the loading is
+     * started and a placeholder is returned.
+     *
+     * @return the image, the placeholder or null when the image could not be
+     *         loaded
+     */
+    @Override
+    public Image get(URL url)
+    {
+        final String key = url.toExternalForm();
+        Image ret = images.get(key);
+        if (ret == null && !failed.contains(key))
+        {
+            load(url, key);
+            ret = PLACEHOLDER;
+        }
+        return ret;
+    }
+
+    /**
+     * Removes all the loaded and failed images, e.g. when a new document is
+     * being loaded. The images being loaded are cancelled; when they finish
+     * anyway, they are not added to the cache.
+     */
+    public synchronized void clear()
+    {
+        generation++;
+        for (Load load : pending.values())
+            load.future.cancel(true);
+        pending = new HashMap<>();
+        images.clear();
+        failed.clear();
+    }
+
+    @Override
+    public void putFailed(URL url)
+    {
+        failed.add(url.toExternalForm());
+    }
+
+    @Override
+    public boolean hasFailed(URL url)
+    {
+        return failed.contains(url.toExternalForm());
+    }
+
+    /**
+     * Checks whether the image of a replaced content is still being loaded.
+     *
+     * @param img
+     *            the image content
+     * @return true when the content shows the placeholder
+     */
+    public static boolean isPending(ContentImage img)
+    {
+        return img.getImage() == PLACEHOLDER;
+    }
+
+    /**
+     * Runs an action on the event dispatch thread when the image of a
+     * replaced content has been loaded (or it has failed to load). Nothing
+     * happens when the image is not being loaded by an AsyncImageCache.
+     *
+     * @param img
+     *            the image content
+     * @param action
+     *            the action
+     */
+    public static void whenLoaded(ContentImage img, Runnable action)
+    {
+        if (isPending(img) && img.getUrl() != null)
+        {
+            ImageCache cache = img.getOwner().getViewport().getConfig().getImageCache();
+            if (cache instanceof AsyncImageCache)
+                ((AsyncImageCache) cache).addAction(img.getUrl().toExternalForm(), action);
+        }
+    }
+
+    /**
+     * Decodes the image of a replaced content for the given display size in
+     * the background and runs an action on the event dispatch thread then,
+     * so the image is not decoded while painting. The action is run at once
+     * when the image is not loaded by an AsyncImageCache.
+     *
+     * @param img
+     *            the image content
+     * @param width
+     *            the display width
+     * @param height
+     *            the display height
+     * @param action
+     *            the action
+     */
+    public static void prepare(ContentImage img, int width, int height, Runnable action)
+    {
+        final Image image = img.getImage();
+        if (image instanceof CachedImage && width > 0 && height > 0)
+        {
+            executor.execute(() -> {
+                ((CachedImage) image).getResolutionVariant(width, height);
+                SwingUtilities.invokeLater(action);
+            });
+        }
+        else
+            action.run();
+    }
+
+    private synchronized void addAction(String key, Runnable action)
+    {
+        Load load = pending.get(key);
+        if (load != null)
+            load.actions.add(action);
+        else // already done
+            SwingUtilities.invokeLater(action);
+    }
+
+    private synchronized void load(URL url, String key)
+    {
+        if (pending.containsKey(key) || images.containsKey(key) || failed.contains(key))
+            return;
+        final long gen = generation;
+        final Load load = new Load();
+        pending.put(key, load);
+        load.future = executor.submit(() -> {
+            Image img = null;
+            try
+            {
+                img = decode(url);
+            } catch (IOException | RuntimeException ignored)
+            {
+                // reported as a failed image
+            }
+
+            synchronized (this)
+            {
+                // the document has been replaced in the meantime
+                if (gen != generation)
+                    return;
+                if (img != null)
+                    images.put(key, img);
+                else
+                    failed.add(key);
+                pending.remove(key);
+            }
+            if (!load.actions.isEmpty())
+                SwingUtilities.invokeLater(() -> load.actions.forEach(Runnable::run));
+        });
+    }
+
+    private Image decode(URL url) throws IOException
+    {
+        byte[] data;
+        try (DocumentSource src = config.createDocumentSource(url))
+        {
+            data = src.getInputStream().readAllBytes();
+        }
+        if (CachedImage.isAnimated(data))
+            return loadAnimated(data);
+        CachedImage ret = CachedImage.create(url, data);
+        // the usual images are decoded now, the large ones when their display size is known
+        if (ret != null && !DecodedImageCache.getInstance().isLarge(ret))
+            ret.getVariant(1);
+        return ret;
+    }
+
+    /**
+     * Loads an animated image as a toolkit image, which plays the animation
+     * and reports the frames to the image observers.
+     */
+    private static Image loadAnimated(byte[] data)
+    {
+        ImageIcon icon = new ImageIcon(data);
+        // the tracker reports the animations as aborted after their first frame
+        return (icon.getImageLoadStatus() != MediaTracker.ERRORED && icon.getIconWidth() > 0) ? icon.getImage() : null;
+    }
+
+    /**
+     * An image being loaded.
+     */
+    private static final class Load
+    {
+        /** The actions to be run when the image is done */
+        final List<Runnable> actions = new ArrayList<>();
+        Future<?> future;
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import cz.vutbr.web.css.CSSException;
+import cz.vutbr.web.css.CSSFactory;
+import cz.vutbr.web.css.ElementMatcher;
+import cz.vutbr.web.css.MediaQuery;
+import cz.vutbr.web.css.MediaSpec;
+import cz.vutbr.web.css.NetworkProcessor;
+import cz.vutbr.web.css.StyleSheet;
+import cz.vutbr.web.csskit.antlr4.CSSParserFactory;
+import cz.vutbr.web.csskit.antlr4.CSSParserFactory.SourceType;
+import org.fit.cssbox.css.DOMAnalyzer;
+import org.fit.net.DataURLHandler;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The style sheets of a document (linked, embedded and inline) obtained the
+ * same way as {@link DOMAnalyzer#getStyleSheets()} does, except that the
+ * linked style sheets are taken from the {@link StyleSheetCache}. DOMAnalyzer
+ * merges all the style sheets to a single new one; here, the shared linked
+ * style sheets are added to the analyzer as they are and the embedded and
+ * inline styles between them form separate style sheets. The rules are
+ * numbered across the style sheets in their order, so the cascade is not
+ * changed.
+ * <p>
+ * Before the style sheets are processed, all the linked and imported style
+ * sheets are requested at once using a {@link StyleSheetPrefetcher}, so the
+ * latency is that of the longest import chain rather than the sum of all
+ * the requests.
+ */
+public final class AuthorStyleSheets
+{
+    private final CSSParserFactory pf = CSSParserFactory.getInstance();
+    private final ElementMatcher matcher = CSSFactory.getElementMatcher();
+    private final StyleSheetPrefetcher prefetcher = new StyleSheetPrefetcher();
+    private final NetworkProcessor network = url -> new ByteArrayInputStream(prefetcher.fetch(url).data);
+    private final URL base;
+    private final String encoding;
+    private final MediaSpec media;
+    private final List<StyleSheet> sheets;
+    /** The style sheet collecting the embedded and inline styles */
+    private StyleSheet local;
+
+    private AuthorStyleSheets(URL base, String encoding, MediaSpec media)
+    {
+        this.base = base;
+        this.encoding = encoding;
+        this.media = media;
+        sheets = new ArrayList<>();
+    }
+
+    /**
+     * Adds the style sheets of the analyzed document to an analyzer. This
+     * replaces {@link DOMAnalyzer#getStyleSheets()}.
+     *
+     * @param da
+     *            the analyzer
+     * @param url
+     *            the document URL the analyzer has been created with
+     */
+    public static void addTo(DOMAnalyzer da, URL url)
+    {
+        AuthorStyleSheets author = new AuthorStyleSheets(getBase(da, url), da.getCharacterEncoding(), da.getMediaSpec());
+        Element root = da.getRoot().getOwnerDocument().getDocumentElement();
+        try
+        {
+            for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling())
+                author.prefetch(n);
+            for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling())
+                author.process(n);
+        } finally
+        {
+            author.prefetcher.cancel();
+        }
+        author.flush();
+        AgentStyleSheets.getStyles(da).addAll(author.sheets);
+    }
+
+    private static URL getBase(DOMAnalyzer da, URL url)
+    {
+        // the <base> element, see the DOMAnalyzer constructor
+        String docBase = da.getDocumentBase();
+        if (docBase != null)
+        {
+            try
+            {
+                return new URL(url, docBase);
+            } catch (MalformedURLException ignored)
+            {
+            }
+        }
+        return url;
+    }
+
+    /**
+     * Starts fetching the style sheets linked or imported in an element
+     * subtree.
+     */
+    private void prefetch(Node node)
+    {
+        if (node.getNodeType() != Node.ELEMENT_NODE)
+            return;
+        final Element elem = (Element) node;
+        if (isEmbeddedStyleSheet(elem))
+            prefetcher.prefetchImports(extractElementText(elem), base);
+        else if (isLinkedStyleSheet(elem))
+        {
+            try
+            {
+                prefetcher.prefetch(DataURLHandler.createURL(base, matcher.getAttribute(elem, "href")));
+            } catch (MalformedURLException ignored)
+            {
+            }
+        }
+        for (Node n = elem.getFirstChild(); n != null; n = n.getNextSibling())
+            prefetch(n);
+    }
+
+    /**
+     * Processes an element subtree in the document order.
+     */
+    private void process(Node node)
+    {
+        if (node.getNodeType() != Node.ELEMENT_NODE)
+            return;
+        final Element elem = (Element) node;
+        try
+        {
+            if (isEmbeddedStyleSheet(elem))
+                local = pf.append(extractElementText(elem), network, null, SourceType.EMBEDDED, getLocal(), base);
+            else if (isLinkedStyleSheet(elem))
+            {
+                URL url = DataURLHandler.createURL(base, matcher.getAttribute(elem, "href"));
+                StyleSheet sheet = StyleSheetCache.getInstance().get(url, encoding, prefetcher);
+                flush();
+                sheets.add(sheet);
+            }
+            else
+            {
+                String style = elem.getAttribute("style");
+                if (style != null && style.length() > 0)
+                    local = pf.append(style, network, null, SourceType.INLINE, elem, true, getLocal(), base);
+                String defStyle = elem.getAttribute("XDefaultStyle");
+                if (defStyle != null && defStyle.length() > 0)
+                    local = pf.append(defStyle, network, null, SourceType.INLINE, elem, false, getLocal(), base);
+            }
+        } catch (IOException | CSSException ignored)
+        {
+            // the style sheet is skipped
+        }
+        for (Node n = elem.getFirstChild(); n != null; n = n.getNextSibling())
+            process(n);
+    }
+
+    private StyleSheet getLocal()
+    {
+        if (local == null)
+            local = (StyleSheet) CSSFactory.getRuleFactory().createStyleSheet().unlock();
+        return local;
+    }
+
+    private void flush()
+    {
+        if (local != null && !local.isEmpty())
+            sheets.add(local);
+        local = null;
+    }
+
+    private boolean isEmbeddedStyleSheet(Element e)
+    {
+        return "style".equalsIgnoreCase(e.getNodeName()) && isAllowedMedia(e);
+    }
+
+    private boolean isLinkedStyleSheet(Element e)
+    {
+        return e.getNodeName().equalsIgnoreCase("link")
+                && matcher.getAttribute(e, "rel").toLowerCase().contains("stylesheet")
+                && (matcher.getAttribute(e, "type").isEmpty() || "text/css".equalsIgnoreCase(matcher.getAttribute(e, "type")))
+                && isAllowedMedia(e);
+    }
+
+    private boolean isAllowedMedia(Element e)
+    {
+        String attr = e.getAttribute("media");
+        if (attr == null || attr.trim().isEmpty())
+            return media.matchesEmpty();
+        List<MediaQuery> ql = pf.parseMediaQuery(attr.trim());
+        if (ql == null)
+            return false; //malformed media queries
+        for (MediaQuery q : ql)
+        {
+            if (media.matches(q))
+                return true;
+        }
+        return false;
+    }
+
+    private static String extractElementText(Element e)
+    {
+        Node text = e.getFirstChild();
+        if (text != null && text.getNodeType() == Node.TEXT_NODE)
+            return ((Text) text).getData();
+        return "";
+    }
+
+}
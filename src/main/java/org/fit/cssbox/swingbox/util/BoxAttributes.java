@@ -0,0 +1,293 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import cz.vutbr.web.css.CSSProperty.TextDecoration;
+import org.fit.cssbox.layout.Box;
+import org.fit.cssbox.layout.ReplacedContent;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import java.awt.*;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable attribute set of an element created from a box. It holds the
+ * attributes used by SwingBox in fixed slots, which is much cheaper than a
+ * general (hash table based) attribute set. The set has no resolve parent.
+ */
+public final class BoxAttributes implements AttributeSet
+{
+    /** The attribute names, the index corresponds to the slot */
+    private static final Object[] NAMES = {
+        AbstractDocument.ElementNameAttribute,
+        Constants.ATTRIBUTE_BOX_REFERENCE,
+        Constants.ATTRIBUTE_ANCHOR_REFERENCE,
+        Constants.ATTRIBUTE_DRAWING_ORDER,
+        Constants.ATTRIBUTE_ELEMENT_ID,
+        Constants.ATTRIBUTE_FONT,
+        Constants.ATTRIBUTE_FOREGROUND,
+        Constants.ATTRIBUTE_FONT_VARIANT,
+        Constants.ATTRIBUTE_TEXT_DECORATION,
+        Constants.ATTRIBUTE_REPLACED_CONTENT
+    };
+
+    private final Object[] values;
+
+    private BoxAttributes(Object[] values)
+    {
+        this.values = values;
+    }
+
+    /**
+     * Creates the attributes of an element representing an element box.
+     *
+     * @param name
+     *            the element name
+     * @param box
+     *            the box
+     * @param anchor
+     *            the anchor
+     * @param order
+     *            the drawing order or null when not specified
+     * @param elementId
+     *            the id of the DOM element
+     * @return the attribute set
+     */
+    public static BoxAttributes forElement(String name, Box box, Anchor anchor, Integer order, String elementId)
+    {
+        return new BoxAttributes(new Object[] { name, box, anchor, order, elementId, null, null, null, null, null });
+    }
+
+    /**
+     * Creates the attributes of an element representing a text box.
+     *
+     * @param name
+     *            the element name
+     * @param box
+     *            the box
+     * @param anchor
+     *            the anchor
+     * @param order
+     *            the drawing order
+     * @param font
+     *            the font used
+     * @param foreground
+     *            the text color
+     * @param fontVariant
+     *            the font variant
+     * @param textDecoration
+     *            the text decoration
+     * @return the attribute set
+     */
+    public static BoxAttributes forText(String name, Box box, Anchor anchor, Integer order, Font font,
+            Color foreground, String fontVariant, List<TextDecoration> textDecoration)
+    {
+        return new BoxAttributes(new Object[] { name, box, anchor, order, null, font, foreground, fontVariant,
+                textDecoration, null });
+    }
+
+    /**
+     * Creates the attributes of an element representing a replaced box.
+     *
+     * @param name
+     *            the element name
+     * @param box
+     *            the box
+     * @param anchor
+     *            the anchor
+     * @param order
+     *            the drawing order
+     * @param content
+     *            the replaced content
+     * @return the attribute set
+     */
+    public static BoxAttributes forReplaced(String name, Box box, Anchor anchor, Integer order, ReplacedContent content)
+    {
+        return new BoxAttributes(new Object[] { name, box, anchor, order, null, null, null, null, null, content });
+    }
+
+    private static int slot(Object name)
+    {
+        if (name instanceof String)
+        {
+            switch ((String) name)
+            {
+                case AbstractDocument.ElementNameAttribute: return 0;
+                case Constants.ATTRIBUTE_BOX_REFERENCE: return 1;
+                case Constants.ATTRIBUTE_ANCHOR_REFERENCE: return 2;
+                case Constants.ATTRIBUTE_DRAWING_ORDER: return 3;
+                case Constants.ATTRIBUTE_ELEMENT_ID: return 4;
+                case Constants.ATTRIBUTE_FONT: return 5;
+                case Constants.ATTRIBUTE_FOREGROUND: return 6;
+                case Constants.ATTRIBUTE_FONT_VARIANT: return 7;
+                case Constants.ATTRIBUTE_TEXT_DECORATION: return 8;
+                case Constants.ATTRIBUTE_REPLACED_CONTENT: return 9;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether all the attributes defined in the given set are defined
+     * in this set as well, i.e. adding this set to the given one results in
+     * this set.
+     *
+     * @param attr
+     *            the set to be checked
+     * @return true if this set defines all the attributes
+     */
+    public boolean definesAll(AttributeSet attr)
+    {
+        if (attr.getResolveParent() != null)
+            return false;
+        for (Enumeration<?> e = attr.getAttributeNames(); e.hasMoreElements(); )
+        {
+            if (!isDefined(e.nextElement()))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int getAttributeCount()
+    {
+        int ret = 0;
+        for (Object value : values)
+            if (value != null) ret++;
+        return ret;
+    }
+
+    @Override
+    public boolean isDefined(Object attrName)
+    {
+        int i = slot(attrName);
+        return i != -1 && values[i] != null;
+    }
+
+    @Override
+    public boolean isEqual(AttributeSet attr)
+    {
+        return getAttributeCount() == attr.getAttributeCount() && containsAttributes(attr);
+    }
+
+    @Override
+    public AttributeSet copyAttributes()
+    {
+        // immutable
+        return this;
+    }
+
+    @Override
+    public Object getAttribute(Object key)
+    {
+        int i = slot(key);
+        return (i == -1) ? null : values[i];
+    }
+
+    @Override
+    public Enumeration<?> getAttributeNames()
+    {
+        return new Enumeration<Object>()
+        {
+            private int next = advance(0);
+
+            private int advance(int i)
+            {
+                while (i < values.length && values[i] == null)
+                    i++;
+                return i;
+            }
+
+            @Override
+            public boolean hasMoreElements()
+            {
+                return next < values.length;
+            }
+
+            @Override
+            public Object nextElement()
+            {
+                if (next >= values.length)
+                    throw new NoSuchElementException();
+                Object ret = NAMES[next];
+                next = advance(next + 1);
+                return ret;
+            }
+        };
+    }
+
+    @Override
+    public boolean containsAttribute(Object name, Object value)
+    {
+        Object val = getAttribute(name);
+        return val != null && val.equals(value);
+    }
+
+    @Override
+    public boolean containsAttributes(AttributeSet attributes)
+    {
+        for (Enumeration<?> e = attributes.getAttributeNames(); e.hasMoreElements(); )
+        {
+            Object name = e.nextElement();
+            if (!containsAttribute(name, attributes.getAttribute(name)))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public AttributeSet getResolveParent()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return (obj instanceof AttributeSet) && isEqual((AttributeSet) obj);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int ret = 0;
+        for (Object value : values)
+            if (value != null) ret ^= value.hashCode();
+        return ret;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder ret = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] != null)
+            {
+                if (ret.length() > 1) ret.append(',');
+                ret.append(NAMES[i]).append('=').append(values[i]);
+            }
+        }
+        return ret.append('}').toString();
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.AbstractMultiResolutionImage;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An image that keeps its encoded data only. It reports its intrinsic size
+ * read from the image header, so it may be used for the layout, and when it
+ * is drawn, Java2D asks for a resolution variant matching the destination
+ * size. The variants are decoded using ImageIO subsampling, so a large image
+ * shown small is never decoded at full resolution, and they are kept in the
+ * shared {@link DecodedImageCache}; an evicted variant is decoded again from
+ * the data.
+ */
+final class CachedImage extends AbstractMultiResolutionImage
+{
+    /** Used when the image data cannot be decoded */
+    private static final BufferedImage BROKEN = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+    private final byte[] data;
+    private final int width;
+    private final int height;
+    /** The cache key prefix identifying the image data */
+    private final String key;
+
+    private CachedImage(URL url, byte[] data, int width, int height)
+    {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        key = url.toExternalForm() + " " + hash(data);
+    }
+
+    /**
+     * Creates an image from the encoded data. Only the image header is read.
+     *
+     * @param url
+     *            the image URL
+     * @param data
+     *            the encoded image
+     * @return the image or null when the data is not a supported image
+     * @throws IOException
+     *             when the header cannot be read
+     */
+    static CachedImage create(URL url, byte[] data) throws IOException
+    {
+        ImageReader reader = getReader(data);
+        if (reader == null)
+            return null;
+        try
+        {
+            return new CachedImage(url, data, reader.getWidth(0), reader.getHeight(0));
+        } finally
+        {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Checks whether the encoded data is an animated image.
+     *
+     * @param data
+     *            the encoded image
+     * @return true for the images with more than one frame
+     */
+    static boolean isAnimated(byte[] data)
+    {
+        try
+        {
+            ImageReader reader = getReader(data);
+            if (reader == null)
+                return false;
+            try
+            {
+                if (!"gif".equalsIgnoreCase(reader.getFormatName()))
+                    return false;
+                // counting the frames requires seeking back
+                reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)), false, true);
+                return reader.getNumImages(true) > 1;
+            } finally
+            {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public int getWidth(ImageObserver observer)
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight(ImageObserver observer)
+    {
+        return height;
+    }
+
+    @Override
+    public Object getProperty(String name, ImageObserver observer)
+    {
+        return UndefinedProperty;
+    }
+
+    @Override
+    protected Image getBaseImage()
+    {
+        return getVariant(1);
+    }
+
+    @Override
+    public Image getResolutionVariant(double destImageWidth, double destImageHeight)
+    {
+        // the largest subsampling that still covers the destination size
+        double scale = Math.min(width / destImageWidth, height / destImageHeight);
+        int subsampling = (scale >= 2 && !Double.isInfinite(scale)) ? (int) scale : 1;
+        return getVariant(subsampling);
+    }
+
+    @Override
+    public List<Image> getResolutionVariants()
+    {
+        return List.of(getBaseImage());
+    }
+
+    /**
+     * Gets the decoded image using the given subsampling, from the cache when
+     * possible.
+     *
+     * @param subsampling
+     *            the subsampling in both axes, 1 for the full resolution
+     * @return the decoded image
+     */
+    BufferedImage getVariant(int subsampling)
+    {
+        BufferedImage ret = DecodedImageCache.getInstance().get(this, subsampling);
+        return (ret != null) ? ret : BROKEN;
+    }
+
+    /**
+     * Gets the estimated size of the image decoded using the given subsampling.
+     *
+     * @return the size in bytes
+     */
+    long getDecodedSize(int subsampling)
+    {
+        return 4L * ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling);
+    }
+
+    String getKey(int subsampling)
+    {
+        return key + " " + subsampling;
+    }
+
+    /**
+     * Decodes the image.
+     *
+     * @param subsampling
+     *            the subsampling in both axes
+     * @return the decoded image or null when the data cannot be decoded
+     */
+    BufferedImage decode(int subsampling)
+    {
+        try
+        {
+            ImageReader reader = getReader(data);
+            if (reader == null)
+                return null;
+            try
+            {
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (subsampling > 1)
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally
+            {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    private static ImageReader getReader(byte[] data) throws IOException
+    {
+        ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext())
+            return null;
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+
+    private static String hash(byte[] data)
+    {
+        try
+        {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
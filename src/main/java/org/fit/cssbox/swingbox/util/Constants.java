@@ -34,8 +34,21 @@ public final class Constants
     //used by environment - System.getProperty
     public static final String DOCUMENT_ASYNCHRONOUS_LOAD_PRIORITY_PROPERTY = "swingbox.document.async_load_priority";
     public static final String DEFAULT_ANALYZER_PROPERTY = "swingbox.default.analyzer";
+    public static final String DOCUMENT_STREAMING_BATCH_SIZE_PROPERTY = "swingbox.document.streaming_batch_size";
+    public static final String TEXT_LAYOUT_CACHE_SIZE_PROPERTY = "swingbox.text_layout_cache.size";
+    public static final String HTTP_MAX_CONNECTIONS_PROPERTY = "swingbox.http.max_connections";
+    public static final String HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY = "swingbox.http.max_connections_per_host";
+    public static final String HTTP_CACHE_DIRECTORY_PROPERTY = "swingbox.http.cache.directory";
+    public static final String HTTP_CACHE_MEMORY_SIZE_PROPERTY = "swingbox.http.cache.memory_size";
+    public static final String HTTP_CACHE_DISK_SIZE_PROPERTY = "swingbox.http.cache.disk_size";
+    public static final String STYLE_SHEET_CACHE_SIZE_PROPERTY = "swingbox.style_sheet_cache.size";
+    public static final String DECODED_IMAGE_CACHE_SIZE_PROPERTY = "swingbox.decoded_image_cache.size";
+    public static final String TILE_CACHE_SIZE_PROPERTY = "swingbox.tile_cache.size";
     public static final String PROPERTY_NOT_SET = "property_not_set";
 
+    //the user agent string sent with the http(s) requests
+    public static final String USER_AGENT = "Mozilla/5.0 (compatible; SwingBox/1.x; Linux; U) CSSBox/4.x (like Gecko)";
+
     // Attributes used by AttributeSet in elements and later in views
     public static final String ATTRIBUTE_BOX_REFERENCE = "attribute_box_reference";
     public static final String ATTRIBUTE_ANCHOR_REFERENCE = "attribute_anchor_reference";
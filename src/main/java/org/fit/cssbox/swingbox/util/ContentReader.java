@@ -22,13 +22,21 @@ import org.fit.cssbox.io.DocumentSource;
 import org.fit.cssbox.layout.*;
 import org.fit.cssbox.swingbox.SwingBoxDocument;
 
+import javax.swing.text.BadLocationException;
+import javax.swing.text.AttributeSet;
 import javax.swing.text.DefaultStyledDocument.ElementSpec;
 import javax.swing.text.SimpleAttributeSet;
 import java.awt.*;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
 
 /**
  * This class is used by editor kit to convert input data to elements used in
@@ -39,11 +47,30 @@ import java.util.Vector;
  */
 public class ContentReader implements org.fit.cssbox.render.BoxRenderer
 {
+    /** The texts of the structural elements, shared by all the specs */
+    private static final char[] START_TAG_TEXT = "{".toCharArray();
+    private static final char[] END_TAG_TEXT = "}".toCharArray();
+    private static final char[] BACKGROUND_TEXT = "*".toCharArray();
+
     /** Resulting element list */
     private List<ElementSpec> elements;
 
     /** Element counter for determining the drawing order */
     private int order;
+
+    /** The attributes of the elements that have been started but not finished */
+    private final Deque<AttributeSet> openElements = new ArrayDeque<>();
+    /** The anchors resolved for the DOM elements, shared by all their boxes */
+    private final Map<org.w3c.dom.Element, Anchor> anchors = new IdentityHashMap<>();
+
+    /** The document the elements are streamed into, null when not streaming */
+    private SwingBoxDocument document;
+    /** The number of elements that causes a flush to the document */
+    private int batchSize;
+    /** The number of start tags that have not been closed yet */
+    private int depth;
+    /** Any elements have been already flushed to the document */
+    private boolean flushed;
     
     /**
      * Instantiates a new content reader.
@@ -66,6 +93,8 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
      *         LinkedList.
      * @throws IOException
      *             Signals that an I/O exception has occurred.
+     * @throws java.util.concurrent.CancellationException
+     *             when the current thread has been interrupted
      */
     public List<ElementSpec> read(DocumentSource docSource, CSSBoxAnalyzer cba, Dimension dim)
             throws IOException
@@ -75,15 +104,21 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
         elements = new Vector<>();
         elements.add(new ElementSpec(SimpleAttributeSet.EMPTY, ElementSpec.EndTagType));
         order = 0;
+        openElements.clear();
+        anchors.clear();
 
         Viewport vp;
         try
         {
             vp = cba.analyze(docSource, dim);
+        } catch (CancellationException e)
+        {
+            throw e;
         } catch (Exception e)
         {
             throw new IOException(e);
         }
+        checkCancelled();
 
         //Use this for "drawing" the boxes. This constructs the element list.
         vp.draw(this);
@@ -91,6 +126,67 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
         return elements;
     }
 
+    /**
+     * Reads input data and streams the resulting elements to the document in
+     * batches of the given size, so that the beginning of the document is
+     * available before the whole box tree is converted. The first batch
+     * replaces the document content, the next ones are appended to its end.
+     * 
+     * @param docSource
+     *            the document source
+     * @param cba
+     *            the instance of {@link CSSBoxAnalyzer}
+     * @param dim
+     *            the dimension
+     * @param doc
+     *            the document to be filled
+     * @param batchSize
+     *            the maximal number of elements kept before they are
+     *            inserted to the document
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     * @throws java.util.concurrent.CancellationException
+     *             when the current thread has been interrupted
+     */
+    public void read(DocumentSource docSource, CSSBoxAnalyzer cba, Dimension dim,
+            SwingBoxDocument doc, int batchSize) throws IOException
+    {
+        assert cba != null && doc != null;
+
+        elements = new ArrayList<>(batchSize + 1);
+        elements.add(new ElementSpec(SimpleAttributeSet.EMPTY, ElementSpec.EndTagType));
+        order = 0;
+        openElements.clear();
+        anchors.clear();
+        depth = 0;
+        flushed = false;
+        this.batchSize = Math.max(batchSize, 1);
+
+        Viewport vp;
+        try
+        {
+            vp = cba.analyze(docSource, dim);
+        } catch (CancellationException e)
+        {
+            throw e;
+        } catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+        checkCancelled();
+
+        try
+        {
+            document = doc;
+            vp.draw(this);
+            flush();
+        } finally
+        {
+            document = null;
+            elements = null;
+        }
+    }
+
     /**
      * Updates the layout. It is designed to do a re-layout only, not to process
      * input data again.
@@ -102,6 +198,8 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
      * @return the list
      * @throws IOException
      *             Signals that an I/O exception has occurred.
+     * @throws java.util.concurrent.CancellationException
+     *             when the current thread has been interrupted
      */
     public List<ElementSpec> update(Dimension newDimension, CSSBoxAnalyzer cba)
         throws IOException
@@ -112,70 +210,76 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
         elements = new LinkedList<>();
         elements.add(new ElementSpec(SimpleAttributeSet.EMPTY, ElementSpec.EndTagType));
         order = 0;
+        openElements.clear();
+        anchors.clear();
 
         Viewport vp;
         try
         {
             vp = cba.update(newDimension);
+        } catch (CancellationException e)
+        {
+            throw e;
         } catch (Exception e)
         {
             throw new IOException(e);
         }
 
+        checkCancelled();
         vp.draw(this);
         
         return elements;
     }
 
-    private SimpleAttributeSet buildElement(ElementBox box)
+    private AttributeSet buildElement(ElementBox box, int order)
     {
         if (box instanceof InlineBox)
         {
-            return buildInlineBox((InlineBox) box);
+            return buildInlineBox((InlineBox) box, order);
         }
         else if (box instanceof Viewport)
         { // -- the boxes
-            return buildViewport((Viewport) box);
+            return buildViewport((Viewport) box, order);
         }
         else if (box instanceof TableBox)
         { // -- tables
-            return buildTableBox((TableBox) box);
+            return buildTableBox((TableBox) box, order);
         }
         else if (box instanceof TableCaptionBox)
         {
-            return buildTableCaptionBox((TableCaptionBox) box);
+            return buildTableCaptionBox((TableCaptionBox) box, order);
         }
         else if (box instanceof TableBodyBox)
         {
-            return buildTableBodyBox((TableBodyBox) box);
+            return buildTableBodyBox((TableBodyBox) box, order);
         }
         else if (box instanceof TableRowBox)
         {
-            return buildTableRowBox((TableRowBox) box);
+            return buildTableRowBox((TableRowBox) box, order);
         }
         else if (box instanceof TableCellBox)
         {
-            return buildTableCellBox((TableCellBox) box);
+            return buildTableCellBox((TableCellBox) box, order);
         }
         else if (box instanceof TableColumnGroup)
         {
-            return buildTableColumnGroup((TableColumnGroup) box);
+            return buildTableColumnGroup((TableColumnGroup) box, order);
         }
         else if (box instanceof TableColumn)
         {
-            return buildTableColumn((TableColumn) box);
+            return buildTableColumn((TableColumn) box, order);
         }
         else if (box instanceof BlockTableBox)
         {
-            return buildBlockTableBox((BlockTableBox) box);
+            return buildBlockTableBox((BlockTableBox) box, order);
         }
         else if (box instanceof ListItemBox)
         {
-            return buildListItemBox((ListItemBox) box);
+            return buildListItemBox((ListItemBox) box, order);
         }
         else if (box instanceof BlockBox)
         {
-            return buildBlockBox((BlockBox) box);
+            return buildBlockBox((BlockBox) box, order);
         }
         else
         {
@@ -183,115 +287,123 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
         }
     }
 
-    private SimpleAttributeSet buildText(TextBox box)
+    private AttributeSet buildText(TextBox box, int order)
     {
         VisualContext vc = box.getVisualContext();
-        SimpleAttributeSet attr = new SimpleAttributeSet();
-
-        attr.addAttribute(Constants.ATTRIBUTE_FONT_VARIANT, vc.getFontVariant());
-        attr.addAttribute(Constants.ATTRIBUTE_TEXT_DECORATION, vc.getTextDecoration());
-        attr.addAttribute(Constants.ATTRIBUTE_FONT, vc.getFont());
-        attr.addAttribute(Constants.ATTRIBUTE_FOREGROUND, vc.getColor());
-
-        attr.addAttribute(SwingBoxDocument.ElementNameAttribute, Constants.TEXT_BOX);
-        attr.addAttribute(Constants.ATTRIBUTE_ANCHOR_REFERENCE, new Anchor());
-        attr.addAttribute(Constants.ATTRIBUTE_BOX_REFERENCE, box);
-
-        return attr;
+        org.w3c.dom.Node parent = box.getNode() == null ? null : box.getNode().getParentNode();
+        Anchor anchor = (parent instanceof org.w3c.dom.Element) ? getAnchor((org.w3c.dom.Element) parent) : Anchor.INACTIVE;
+        return BoxAttributes.forText(Constants.TEXT_BOX, box, anchor, order,
+                vc.getFont(), vc.getColor(), vc.getFontVariant(), vc.getTextDecoration());
     }
 
-    private SimpleAttributeSet buildReplacedBox(ReplacedBox box)
+    private AttributeSet buildReplacedBox(ReplacedBox box, int order)
     {
-        SimpleAttributeSet attr = new SimpleAttributeSet();
+        String name;
         if (box instanceof BlockReplacedBox)
-            attr.addAttribute(SwingBoxDocument.ElementNameAttribute, Constants.BLOCK_REPLACED_BOX);
+            name = Constants.BLOCK_REPLACED_BOX;
         else if (box instanceof InlineBlockReplacedBox)
-            attr.addAttribute(SwingBoxDocument.ElementNameAttribute, Constants.INLINE_BLOCK_REPLACED_BOX);
+            name = Constants.INLINE_BLOCK_REPLACED_BOX;
         else
-            attr.addAttribute(SwingBoxDocument.ElementNameAttribute, Constants.INLINE_REPLACED_BOX);
-        attr.addAttribute(Constants.ATTRIBUTE_BOX_REFERENCE, box);
-        attr.addAttribute(Constants.ATTRIBUTE_ANCHOR_REFERENCE, new Anchor());
-        attr.addAttribute(Constants.ATTRIBUTE_REPLACED_CONTENT, box.getContentObj());
+            name = Constants.INLINE_REPLACED_BOX;
 
-        return attr;
+        return BoxAttributes.forReplaced(name, (Box) box, getAnchor(((ElementBox) box).getElement()), order,
+                box.getContentObj());
     }
 
-    private SimpleAttributeSet buildElementBackground(ElementBox box)
+    private AttributeSet buildElementBackground(ElementBox box, int order)
     {
-        return commonBuild(box, Constants.BACKGROUND);
+        return commonBuild(box, Constants.BACKGROUND, order);
     }
     
-    private SimpleAttributeSet buildBlockBox(BlockBox box)
+    private AttributeSet buildBlockBox(BlockBox box, int order)
     {
-        return commonBuild(box, Constants.BLOCK_BOX);
+        return commonBuild(box, Constants.BLOCK_BOX, order);
     }
 
-    private SimpleAttributeSet buildInlineBox(InlineBox box)
+    private AttributeSet buildInlineBox(InlineBox box, int order)
     {
-        return commonBuild(box, Constants.INLINE_BOX);
+        return commonBuild(box, Constants.INLINE_BOX, order);
     }
 
-    private SimpleAttributeSet buildViewport(Viewport box)
+    private AttributeSet buildViewport(Viewport box, int order)
     {
-        return commonBuild(box, Constants.VIEWPORT);
+        return commonBuild(box, Constants.VIEWPORT, order);
     }
 
-    private SimpleAttributeSet buildBlockTableBox(BlockTableBox box)
+    private AttributeSet buildBlockTableBox(BlockTableBox box, int order)
     {
-        return commonBuild(box, Constants.BLOCK_TABLE_BOX);
+        return commonBuild(box, Constants.BLOCK_TABLE_BOX, order);
     }
 
-    private SimpleAttributeSet buildTableBox(TableBox box)
+    private AttributeSet buildTableBox(TableBox box, int order)
     {
-        return commonBuild(box, Constants.TABLE_BOX);
+        return commonBuild(box, Constants.TABLE_BOX, order);
     }
 
-    private SimpleAttributeSet buildTableCaptionBox(TableCaptionBox box)
+    private AttributeSet buildTableCaptionBox(TableCaptionBox box, int order)
     {
-        return commonBuild(box, Constants.TABLE_CAPTION_BOX);
+        return commonBuild(box, Constants.TABLE_CAPTION_BOX, order);
     }
 
-    private SimpleAttributeSet buildTableBodyBox(TableBodyBox box)
+    private AttributeSet buildTableBodyBox(TableBodyBox box, int order)
     {
-        return commonBuild(box, Constants.TABLE_BODY_BOX);
+        return commonBuild(box, Constants.TABLE_BODY_BOX, order);
     }
 
-    private SimpleAttributeSet buildTableRowBox(TableRowBox box)
+    private AttributeSet buildTableRowBox(TableRowBox box, int order)
     {
-        return commonBuild(box, Constants.TABLE_ROW_BOX);
+        return commonBuild(box, Constants.TABLE_ROW_BOX, order);
     }
 
-    private SimpleAttributeSet buildTableCellBox(TableCellBox box)
+    private AttributeSet buildTableCellBox(TableCellBox box, int order)
     {
-        return commonBuild(box, Constants.TABLE_CELL_BOX);
+        return commonBuild(box, Constants.TABLE_CELL_BOX, order);
     }
 
-    private SimpleAttributeSet buildTableColumn(TableColumn box)
+    private AttributeSet buildTableColumn(TableColumn box, int order)
     {
-        return commonBuild(box, Constants.TABLE_COLUMN);
+        return commonBuild(box, Constants.TABLE_COLUMN, order);
     }
 
-    private SimpleAttributeSet buildTableColumnGroup(TableColumnGroup box)
+    private AttributeSet buildTableColumnGroup(TableColumnGroup box, int order)
     {
-        return commonBuild(box, Constants.TABLE_COLUMN_GROUP);
+        return commonBuild(box, Constants.TABLE_COLUMN_GROUP, order);
     }
 
-    private SimpleAttributeSet buildListItemBox(ListItemBox box)
+    private AttributeSet buildListItemBox(ListItemBox box, int order)
     {
-        return commonBuild(box, Constants.LIST_ITEM_BOX);
+        return commonBuild(box, Constants.LIST_ITEM_BOX, order);
     }
     
-    private SimpleAttributeSet commonBuild( ElementBox box, Object elementNameValue)
+    private AttributeSet commonBuild(ElementBox box, String elementNameValue, int order)
     {
         // when there are no special requirements to build an element, use this
         // one
-        SimpleAttributeSet attr = new SimpleAttributeSet();
-        attr.addAttribute(SwingBoxDocument.ElementNameAttribute, elementNameValue);
-        attr.addAttribute(Constants.ATTRIBUTE_ANCHOR_REFERENCE, new Anchor());
-        attr.addAttribute(Constants.ATTRIBUTE_BOX_REFERENCE, box);
-        attr.addAttribute(Constants.ATTRIBUTE_ELEMENT_ID, box.getElement().getAttribute("id"));
+        return BoxAttributes.forElement(elementNameValue, box, getAnchor(box.getElement()), order,
+                box.getElement().getAttribute("id"));
+    }
 
-        return attr;
+    /**
+     * Finds the anchor for the given DOM element. The anchors are resolved once
+     * per element, so that all the boxes of a link share the same instance.
+     * The elements outside of any link get the shared inactive anchor.
+     */
+    private Anchor getAnchor(org.w3c.dom.Element e)
+    {
+        if (e == null)
+            return Anchor.INACTIVE;
+        Anchor ret = anchors.get(e);
+        if (ret == null)
+        {
+            if ("a".equalsIgnoreCase(e.getTagName().trim()))
+                ret = Anchor.forElement(e);
+            else if (e.getParentNode() instanceof org.w3c.dom.Element)
+                ret = getAnchor((org.w3c.dom.Element) e.getParentNode());
+            else
+                ret = Anchor.INACTIVE;
+            anchors.put(e, ret);
+        }
+        return ret;
     }
 
     //======================================================================================================================
@@ -300,15 +412,18 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
     @Override
     public void startElementContents(ElementBox elem)
     {
+        checkCancelled();
         if (!elem.isReplaced())
         {
-            SimpleAttributeSet attr = buildElement(elem);
+            AttributeSet attr = buildElement(elem, order);
 
             if(attr != null) {
-                attr.addAttribute( Constants.ATTRIBUTE_DRAWING_ORDER, order++ );
-                elements.add( new ElementSpec(
-                    attr, ElementSpec.StartTagType, "{".toCharArray(),1,0 ) );
+                order++;
+                addElement( new ElementSpec(
+                    attr, ElementSpec.StartTagType, START_TAG_TEXT, 1, 0 ) );
             }
+            // the end tag shares the attributes
+            openElements.push(attr != null ? attr : SimpleAttributeSet.EMPTY);
         }
     }
 
@@ -317,17 +432,16 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
     {
         if (!elem.isReplaced())
         {
-            SimpleAttributeSet attr = buildElement(elem);
-            elements.add(new ElementSpec(attr, ElementSpec.EndTagType, "}".toCharArray(), 1, 0));
+            AttributeSet attr = openElements.pop();
+            addElement(new ElementSpec(attr, ElementSpec.EndTagType, END_TAG_TEXT, 1, 0));
         }
     }
 
     @Override
     public void renderElementBackground(ElementBox elem)
     {
-        SimpleAttributeSet attr = buildElementBackground(elem);
-        attr.addAttribute(Constants.ATTRIBUTE_DRAWING_ORDER, order++);
-        elements.add(new ElementSpec(attr, ElementSpec.ContentType, "*".toCharArray(), 0, 1));
+        AttributeSet attr = buildElementBackground(elem, order++);
+        addElement(new ElementSpec(attr, ElementSpec.ContentType, BACKGROUND_TEXT, 0, 1));
     }
 
     @Override
@@ -340,9 +454,8 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
     public void renderTextContent(TextBox box)
     {
         String text = box.getText();
-        SimpleAttributeSet attr = buildText(box);
-        attr.addAttribute(Constants.ATTRIBUTE_DRAWING_ORDER, order++);
-        elements.add(new ElementSpec(attr, ElementSpec.ContentType, text.toCharArray(), 0, text.length()));
+        AttributeSet attr = buildText(box, order++);
+        addElement(new ElementSpec(attr, ElementSpec.ContentType, text.toCharArray(), 0, text.length()));
     }
 
     @Override
@@ -359,9 +472,8 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
         else
             text = "{object}";
 
-        SimpleAttributeSet attr = buildReplacedBox(box);
-        attr.addAttribute(Constants.ATTRIBUTE_DRAWING_ORDER, order++);
-        elements.add(new ElementSpec(attr, ElementSpec.ContentType, text.toCharArray(), 0, text.length()));
+        AttributeSet attr = buildReplacedBox(box, order++);
+        addElement(new ElementSpec(attr, ElementSpec.ContentType, text.toCharArray(), 0, text.length()));
     }
 
     @Override
@@ -369,6 +481,60 @@ public class ContentReader implements org.fit.cssbox.render.BoxRenderer
     {
     }
 
+    private void addElement(ElementSpec spec)
+    {
+        elements.add(spec);
+        if (spec.getType() == ElementSpec.StartTagType)
+            depth++;
+        else if (spec.getType() == ElementSpec.EndTagType)
+            depth--;
+
+        // Flush after a content element within the viewport only: the document
+        // root keeps the viewport element only and the next batch is inserted
+        // to the deepest element at the end of the document, which is the
+        // parent of the last content element.
+        if (document != null && depth > 0 && elements.size() >= batchSize
+                && spec.getType() == ElementSpec.ContentType)
+            flush();
+    }
+
+    /**
+     * Inserts the pending elements to the document.
+     */
+    private void flush()
+    {
+        if (elements.isEmpty())
+            return;
+
+        if (!flushed)
+        {
+            document.create(elements.toArray(new ElementSpec[0]));
+            flushed = true;
+        }
+        else
+        {
+            try
+            {
+                document.insert(document.getLength(), elements.toArray(new ElementSpec[0]));
+            } catch (BadLocationException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        elements.clear();
+    }
+
+    /**
+     * Stops the conversion when the current thread has been interrupted, i.e.
+     * the layout has been cancelled by {@link LayoutWorker} or the page load
+     * by {@link NavigationScheduler}.
+     */
+    private void checkCancelled()
+    {
+        if (Thread.currentThread().isInterrupted())
+            throw new CancellationException("Layout cancelled");
+    }
+
     // block attributes, in general
     // FirstLineIndent
     // LeftIndent
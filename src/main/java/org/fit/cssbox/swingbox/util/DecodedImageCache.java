@@ -0,0 +1,240 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the decoded images shared by all the documents. The images are
+ * identified by their URL and content and by the subsampling used for
+ * decoding them, i.e. by the size they are decoded for. The cache is bounded
+ * by the size of the decoded pixel data; the least recently used images are
+ * evicted first and decoded again from their encoded data when they are
+ * needed. The size limit in bytes may be set using the
+ * {@link Constants#DECODED_IMAGE_CACHE_SIZE_PROPERTY} system property.
+ */
+public final class DecodedImageCache
+{
+    /** The default size limit in bytes */
+    private static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    private static final DecodedImageCache instance = new DecodedImageCache(getDefaultMaxSize());
+
+    private final Map<String, Entry> images;
+    private final long maxSize;
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize
+     *            the size limit in bytes
+     */
+    public DecodedImageCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+        images = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    /**
+     * Gets the cache shared by all the documents.
+     *
+     * @return the shared cache
+     */
+    public static DecodedImageCache getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Gets a decoded image, decoding it when it is not present in the cache.
+     *
+     * @param image
+     *            the encoded image
+     * @param subsampling
+     *            the subsampling in both axes
+     * @return the decoded image or null when it cannot be decoded
+     */
+    BufferedImage get(CachedImage image, int subsampling)
+    {
+        final String key = image.getKey(subsampling);
+        synchronized (this)
+        {
+            Entry entry = images.get(key);
+            if (entry != null)
+            {
+                hits++;
+                return entry.image;
+            }
+            misses++;
+        }
+
+        // decode outside of the lock
+        BufferedImage decoded = image.decode(subsampling);
+        if (decoded != null)
+            store(key, new Entry(decoded));
+        return decoded;
+    }
+
+    /**
+     * Checks whether an image would take a significant part of the cache
+     * when decoded at full resolution.
+     *
+     * @param image
+     *            the encoded image
+     * @return true when the image is large
+     */
+    boolean isLarge(CachedImage image)
+    {
+        return image.getDecodedSize(1) > maxSize / 16;
+    }
+
+    private synchronized void store(String key, Entry entry)
+    {
+        Entry old = images.put(key, entry);
+        if (old != null)
+            size -= old.size;
+        size += entry.size;
+        evict();
+    }
+
+    /**
+     * Removes all the images from the cache. The counters are not reset.
+     */
+    public synchronized void clear()
+    {
+        images.clear();
+        size = 0;
+    }
+
+    /**
+     * Gets the number of decoded images in the cache.
+     *
+     * @return the number of images
+     */
+    public synchronized int getImageCount()
+    {
+        return images.size();
+    }
+
+    /**
+     * Gets the size of the decoded images in the cache.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the size limit of the cache.
+     *
+     * @return the size limit in bytes
+     */
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Gets the number of requests served from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests that required decoding the image.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Gets the number of images evicted because of the size limit.
+     *
+     * @return the eviction count
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "DecodedImageCache[images: " + images.size() + ", size: " + size + "/" + maxSize
+                + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + "]";
+    }
+
+    private void evict()
+    {
+        Iterator<Entry> it = images.values().iterator();
+        while (size > maxSize && it.hasNext())
+        {
+            Entry oldest = it.next();
+            it.remove();
+            size -= oldest.size;
+            evictions++;
+        }
+    }
+
+    private static long getDefaultMaxSize()
+    {
+        String tmp = System.getProperty(Constants.DECODED_IMAGE_CACHE_SIZE_PROPERTY, Constants.PROPERTY_NOT_SET);
+        if (!tmp.equals(Constants.PROPERTY_NOT_SET))
+        {
+            try
+            {
+                return Long.parseLong(tmp);
+            } catch (NumberFormatException ignored)
+            {
+            }
+        }
+        return DEFAULT_MAX_SIZE;
+    }
+
+    private static final class Entry
+    {
+        final BufferedImage image;
+        final long size;
+
+        Entry(BufferedImage image)
+        {
+            this.image = image;
+            DataBuffer buf = image.getRaster().getDataBuffer();
+            size = (long) buf.getSize() * buf.getNumBanks() * DataBuffer.getDataTypeSize(buf.getDataType()) / 8;
+        }
+    }
+
+}
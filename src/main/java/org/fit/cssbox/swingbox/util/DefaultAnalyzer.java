@@ -19,7 +19,6 @@
 
 package org.fit.cssbox.swingbox.util;
 
-import org.fit.cssbox.css.CSSNorm;
 import org.fit.cssbox.css.DOMAnalyzer;
 import org.fit.cssbox.io.DocumentSource;
 import org.fit.cssbox.layout.BrowserCanvas;
@@ -30,10 +29,10 @@ import org.jsoup.helper.W3CDom;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
 
 import static java.awt.image.BufferedImage.TYPE_INT_RGB;
 import static org.apache.commons.codec.CharEncoding.UTF_8;
-import static org.fit.cssbox.css.DOMAnalyzer.Origin.AGENT;
 
 /**
  * This is customizable default implementation of CSSBoxAnalyzer.
@@ -45,6 +44,8 @@ import static org.fit.cssbox.css.DOMAnalyzer.Origin.AGENT;
 public class DefaultAnalyzer implements CSSBoxAnalyzer {
   private final W3CDom mDom = new W3CDom();
   private final FastBrowserConfig mBrowserConfig = new FastBrowserConfig();
+  private final AsyncImageCache mImageCache =
+      new AsyncImageCache( mBrowserConfig );
 
   private org.w3c.dom.Document w3cdoc;
   private BrowserCanvas canvas;
@@ -52,6 +53,7 @@ public class DefaultAnalyzer implements CSSBoxAnalyzer {
   public DefaultAnalyzer() {
     mBrowserConfig.setLoadImages( true );
     mBrowserConfig.setLoadBackgroundImages( true );
+    mBrowserConfig.setImageCache( mImageCache );
   }
 
   @Override
@@ -60,18 +62,22 @@ public class DefaultAnalyzer implements CSSBoxAnalyzer {
     final var url = docSource.getURL();
     final var uri = url.toURI();
 
+    // the images of the previous document are not needed any more
+    mImageCache.clear();
+
     final var document = Jsoup.parse(
         docSource.getInputStream(), UTF_8, uri.toString() );
     docSource.close();
+    checkCancelled();
 
     w3cdoc = mDom.fromJsoup( document );
 
     // Create the CSS analyzer
     final var da = new DOMAnalyzer( w3cdoc, url );
     da.attributesToStyles();
-    da.addStyleSheet( null, CSSNorm.stdStyleSheet(), AGENT );
-    da.addStyleSheet( null, CSSNorm.userStyleSheet(), AGENT );
-    da.getStyleSheets();
+    AgentStyleSheets.addTo( da );
+    AuthorStyleSheets.addTo( da, url );
+    checkCancelled();
 
     final var image = new BufferedImage( 1, 1, TYPE_INT_RGB );
     canvas = new BrowserCanvas( da.getRoot(), da, url );
@@ -82,6 +88,16 @@ public class DefaultAnalyzer implements CSSBoxAnalyzer {
     return canvas.getViewport();
   }
 
+  /**
+   * Stops the analysis when the current thread has been interrupted, i.e. the
+   * page load has been superseded by a newer one.
+   */
+  private static void checkCancelled() {
+    if( Thread.currentThread().isInterrupted() ) {
+      throw new CancellationException( "Page load cancelled" );
+    }
+  }
+
   @Override
   public Viewport update( Dimension dim ) {
     canvas.createLayout( dim );
@@ -0,0 +1,212 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import org.fit.cssbox.swingbox.SwingBoxDocument;
+
+import javax.swing.*;
+import javax.swing.text.DefaultStyledDocument.ElementSpec;
+import java.awt.*;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the re-layouts of a document on a background thread. Only the most
+ * recent request is of interest: scheduling a new layout cancels the pending
+ * (or running) one, so a series of resize events results in a single layout
+ * for the latest dimension. The resulting element list is applied to the
+ * document on the event dispatch thread, in one step.
+ */
+public class LayoutWorker
+{
+    private final CSSBoxAnalyzer cba;
+    private final ExecutorService executor;
+    private Future<?> pending;
+    /** The generation of the most recent request, older results are dropped */
+    private long generation;
+    /** The dimension of the layout not applied yet, null when there is none */
+    private Dimension pendingDim;
+    /** True when the layout not applied yet has been requested for a content change */
+    private boolean contentPending;
+
+    /**
+     * Creates a new worker that uses the given analyzer for the layouts.
+     *
+     * @param cba
+     *            the analyzer
+     */
+    public LayoutWorker(CSSBoxAnalyzer cba)
+    {
+        this.cba = cba;
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "SwingBox layout");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Gets the analyzer used by this worker.
+     *
+     * @return the analyzer
+     */
+    public CSSBoxAnalyzer getCSSBoxAnalyzer()
+    {
+        return cba;
+    }
+
+    /**
+     * Schedules a layout of the document for the given dimension. Any layout
+     * scheduled before is cancelled.
+     *
+     * @param doc
+     *            the document to be updated
+     * @param dim
+     *            the new dimension
+     */
+    public void schedule(SwingBoxDocument doc, Dimension dim)
+    {
+        schedule(doc, dim, true);
+    }
+
+    /**
+     * Schedules a layout of the document for a new size of the view. Any
+     * layout scheduled before is cancelled. Unlike the layouts scheduled by
+     * {@link #schedule(SwingBoxDocument, Dimension)}, this one may be
+     * cancelled by {@link #cancelResize(SwingBoxDocument, Dimension)}.
+     *
+     * @param doc
+     *            the document to be updated
+     * @param dim
+     *            the new dimension
+     */
+    public void scheduleResize(SwingBoxDocument doc, Dimension dim)
+    {
+        schedule(doc, dim, false);
+    }
+
+    /**
+     * Cancels the pending layout if it has only been scheduled for a resize.
+     * A pending layout that also covers a content change (it may have replaced
+     * such a layout) is kept, but scheduled again for the given dimension.
+     *
+     * @param doc
+     *            the document to be updated
+     * @param dim
+     *            the current dimension
+     */
+    public synchronized void cancelResize(SwingBoxDocument doc, Dimension dim)
+    {
+        if (pendingDim == null)
+            return;
+        if (!contentPending)
+            cancel();
+        else if (!pendingDim.equals(dim))
+            schedule(doc, dim, true);
+    }
+
+    private synchronized void schedule(final SwingBoxDocument doc, Dimension dim, boolean content)
+    {
+        final long gen = ++generation;
+        final Dimension d = new Dimension(dim);
+        if (pending != null) pending.cancel(true);
+        // a replaced layout for a content change is not needed any more only
+        // when this one is applied
+        contentPending |= content;
+        pendingDim = d;
+
+        pending = executor.submit(() -> {
+            if (!isCurrent(gen)) return;
+            final ElementSpec[] specs;
+            try
+            {
+                List<ElementSpec> elements;
+                // the analyzer is shared with the synchronous updates
+                synchronized (cba)
+                {
+                    if (!isCurrent(gen)) return;
+                    elements = new ContentReader().update(d, cba);
+                }
+                specs = elements.toArray(new ElementSpec[0]);
+            } catch (IOException | CancellationException e)
+            {
+                return;
+            }
+
+            SwingUtilities.invokeLater(() -> {
+                // a newer request may have come in the meantime
+                if (applied(gen))
+                {
+                    if (!doc.rebind(specs))
+                        doc.create(specs);
+                }
+            });
+        });
+    }
+
+    /**
+     * Cancels the pending layout, if there is one. Its result will not be
+     * applied to the document.
+     */
+    public synchronized void cancel()
+    {
+        generation++;
+        pendingDim = null;
+        contentPending = false;
+        if (pending != null)
+        {
+            pending.cancel(true);
+            pending = null;
+        }
+    }
+
+    /**
+     * Shuts the worker down. The layout already scheduled is still finished,
+     * then the worker thread terminates. No layouts may be scheduled after
+     * that.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    private synchronized boolean isCurrent(long gen)
+    {
+        return gen == generation;
+    }
+
+    /**
+     * Marks the layout as applied when it is the most recent one.
+     *
+     * @return true when the layout should be applied
+     */
+    private synchronized boolean applied(long gen)
+    {
+        if (gen != generation)
+            return false;
+        pendingDim = null;
+        contentPending = false;
+        return true;
+    }
+
+}
@@ -115,7 +115,7 @@ public class MouseController extends MouseAdapter
                         }
                         prevAnchor = anchor;
                     }
-                    else if (!prevAnchor.equalProperties(anchor.getProperties()))
+                    else
                     {
                         if (prevAnchor.isActive())
                         {
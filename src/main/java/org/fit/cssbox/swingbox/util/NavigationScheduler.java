@@ -0,0 +1,187 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Schedules the page loads of a browser pane. Only the most recent page is of
+ * interest: each load gets a new generation number and starting it cancels
+ * the previous one. The tasks, pending fetches and open streams attached to a
+ * load are cancelled (the tasks are interrupted) or closed, so that a
+ * superseded load stops in whatever stage it is (fetching, parsing, style
+ * analysis, layout or building the elements). The results of a superseded
+ * load must be dropped, which is checked using {@link #isCurrent(long)}.
+ * <p>
+ * The load tasks of all the panes run on a shared executor that uses virtual
+ * threads when the runtime provides them.
+ */
+public class NavigationScheduler
+{
+    private static final ExecutorService executor = createExecutor();
+
+    /** The generation of the most recent load */
+    private long generation;
+    /** The tasks, futures and streams of the current load */
+    private final List<Object> attached = new ArrayList<>();
+
+    /**
+     * Gets the executor shared by the page loads of all the panes.
+     *
+     * @return the executor
+     */
+    public static ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Starts a new load. The load in progress, if any, is cancelled.
+     *
+     * @return the generation of the new load
+     */
+    public synchronized long next()
+    {
+        cancelAttached();
+        return ++generation;
+    }
+
+    /**
+     * Cancels the load in progress, if there is one.
+     */
+    public synchronized void cancel()
+    {
+        cancelAttached();
+        generation++;
+    }
+
+    /**
+     * Checks whether a load has not been superseded by a newer one.
+     *
+     * @param gen
+     *            the generation of the load
+     * @return true if it is the most recent load
+     */
+    public synchronized boolean isCurrent(long gen)
+    {
+        return gen == generation;
+    }
+
+    /**
+     * Attaches a future (e.g. a pending fetch) to a load. It is cancelled
+     * together with the load, or immediately if the load is not current.
+     *
+     * @param gen
+     *            the generation of the load
+     * @param future
+     *            the future
+     * @return true if the load is current
+     */
+    public synchronized boolean attach(long gen, Future<?> future)
+    {
+        if (gen != generation)
+        {
+            future.cancel(true);
+            return false;
+        }
+        attached.add(future);
+        return true;
+    }
+
+    /**
+     * Attaches a stream to a load. It is closed together with the load, or
+     * immediately if the load is not current.
+     *
+     * @param gen
+     *            the generation of the load
+     * @param stream
+     *            the stream
+     * @return true if the load is current
+     */
+    public synchronized boolean attach(long gen, Closeable stream)
+    {
+        if (gen != generation)
+        {
+            closeQuietly(stream);
+            return false;
+        }
+        attached.add(stream);
+        return true;
+    }
+
+    /**
+     * Runs a task of a load on the shared executor. The task is interrupted
+     * when the load is cancelled.
+     *
+     * @param gen
+     *            the generation of the load
+     * @param task
+     *            the task
+     */
+    public synchronized void execute(long gen, Runnable task)
+    {
+        if (gen == generation)
+            attached.add(executor.submit(task));
+    }
+
+    private void cancelAttached()
+    {
+        for (Object o : attached)
+        {
+            if (o instanceof Future)
+                ((Future<?>) o).cancel(true);
+            else
+                closeQuietly((Closeable) o);
+        }
+        attached.clear();
+    }
+
+    private static void closeQuietly(Closeable stream)
+    {
+        try
+        {
+            stream.close();
+        } catch (IOException ignored)
+        {
+        }
+    }
+
+    private static ExecutorService createExecutor()
+    {
+        try
+        {
+            // Java 21+, the loads spend much of their time waiting for data
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e)
+        {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "SwingBox navigation");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *  
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A strip consumer that encodes the strips to a PNG image as they come. Only
+ * the current and the previous pixel row are kept in memory, so a page of
+ * any height may be written. The image is an 8-bit RGB PNG of the size given
+ * in the constructor; the strips must cover it from top to bottom and
+ * {@link #close()} must be called to finish the image. The underlying stream
+ * is not closed.
+ */
+public class PngStripWriter implements StripConsumer, Closeable
+{
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    /** Maximal size of the compressed data in a single IDAT chunk */
+    private static final int CHUNK_SIZE = 65536;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final DeflaterOutputStream data;
+    private final Deflater deflater;
+    private final int[] pixels;
+    private byte[] row;
+    private byte[] prior;
+    private final byte[][] filtered;
+    private int rows;
+    private boolean closed;
+
+    /**
+     * Creates the writer and writes the PNG header.
+     * 
+     * @param out the output stream
+     * @param width the image width
+     * @param height the image height
+     * @throws IOException when the header cannot be written
+     */
+    public PngStripWriter(OutputStream out, int width, int height) throws IOException
+    {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        pixels = new int[width];
+        row = new byte[width * 3];
+        prior = new byte[width * 3];
+        filtered = new byte[5][1 + width * 3];
+        for (int i = 0; i < filtered.length; i++)
+            filtered[i][0] = (byte) i;
+
+        this.out.write(SIGNATURE);
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream d = new DataOutputStream(ihdr);
+        d.writeInt(width);
+        d.writeInt(height);
+        d.writeByte(8); //bit depth
+        d.writeByte(2); //truecolor
+        d.writeByte(0); //deflate
+        d.writeByte(0); //adaptive filtering
+        d.writeByte(0); //no interlace
+        writeChunk("IHDR", ihdr.toByteArray(), ihdr.size());
+
+        deflater = new Deflater();
+        data = new DeflaterOutputStream(new IdatStream(), deflater, CHUNK_SIZE);
+    }
+
+    @Override
+    public void accept(BufferedImage strip, int y) throws IOException
+    {
+        if (closed)
+            throw new IOException("The writer is closed");
+        if (y != rows)
+            throw new IOException("Expected a strip at " + rows + ", got " + y);
+        if (strip.getWidth() < width || rows + strip.getHeight() > height)
+            throw new IOException("The strip does not fit the image");
+
+        for (int r = 0; r < strip.getHeight(); r++)
+        {
+            strip.getRGB(0, r, width, 1, pixels, 0, width);
+            for (int i = 0, j = 0; i < width; i++)
+            {
+                final int p = pixels[i];
+                row[j++] = (byte) (p >> 16);
+                row[j++] = (byte) (p >> 8);
+                row[j++] = (byte) p;
+            }
+            data.write(filter());
+            byte[] tmp = prior;
+            prior = row;
+            row = tmp;
+            rows++;
+        }
+    }
+
+    /**
+     * Finishes the image. Fails when the strips have not covered the whole
+     * image.
+     * 
+     * @throws IOException when the image cannot be finished
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try
+        {
+            data.close(); //writes the last IDAT chunk, keeps the stream open
+        }
+        finally
+        {
+            deflater.end();
+        }
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+        if (rows != height)
+            throw new IOException("Only " + rows + " of " + height + " rows were written");
+    }
+
+    /**
+     * Filters the current row with each of the PNG filter types and picks
+     * the one with the lowest sum of absolute differences, as recommended by
+     * the PNG specification.
+     * 
+     * @return the filter type byte followed by the filtered row
+     */
+    private byte[] filter()
+    {
+        final int len = row.length;
+        for (int i = 0; i < len; i++)
+        {
+            final int x = row[i] & 0xff;
+            final int a = i >= 3 ? row[i - 3] & 0xff : 0;
+            final int b = prior[i] & 0xff;
+            final int c = i >= 3 ? prior[i - 3] & 0xff : 0;
+            filtered[0][i + 1] = (byte) x;
+            filtered[1][i + 1] = (byte) (x - a);
+            filtered[2][i + 1] = (byte) (x - b);
+            filtered[3][i + 1] = (byte) (x - ((a + b) >> 1));
+            filtered[4][i + 1] = (byte) (x - paeth(a, b, c));
+        }
+
+        byte[] best = filtered[0];
+        long bestSum = Long.MAX_VALUE;
+        for (byte[] f : filtered)
+        {
+            long sum = 0;
+            for (int i = 1; i <= len; i++)
+                sum += Math.abs(f[i]);
+            if (sum < bestSum)
+            {
+                bestSum = sum;
+                best = f;
+            }
+        }
+        return best;
+    }
+
+    private static int paeth(int a, int b, int c)
+    {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        else if (pb <= pc)
+            return b;
+        else
+            return c;
+    }
+
+    private void writeChunk(String type, byte[] content, int len) throws IOException
+    {
+        final byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(content, 0, len);
+        out.writeInt(len);
+        out.write(name);
+        out.write(content, 0, len);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Splits the compressed data to IDAT chunks.
+     */
+    private class IdatStream extends OutputStream
+    {
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (count == buffer.length)
+                flushChunk();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (count == buffer.length)
+                    flushChunk();
+                final int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            flushChunk();
+        }
+
+        private void flushChunk() throws IOException
+        {
+            if (count > 0)
+            {
+                writeChunk("IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *  
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Receives a rendered page piece by piece. The page is painted in horizontal
+ * strips of the full page width from top to bottom, and each strip is passed
+ * to the consumer as soon as it is painted.
+ */
+@FunctionalInterface
+public interface StripConsumer
+{
+
+    /**
+     * Accepts a painted strip. The image is reused for the next strip, so it
+     * is only valid until this method returns; the consumer has to copy the
+     * pixels it wants to keep. The last strip may be lower than the others.
+     * 
+     * @param strip the painted strip, its height is the strip height
+     * @param y the vertical position of the strip on the page
+     * @throws IOException when the strip cannot be processed; the rendering
+     *             stops and the exception is passed to the caller
+     */
+    void accept(BufferedImage strip, int y) throws IOException;
+}
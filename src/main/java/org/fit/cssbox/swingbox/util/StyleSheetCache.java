@@ -0,0 +1,460 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import cz.vutbr.web.css.CSSException;
+import cz.vutbr.web.css.CSSFactory;
+import cz.vutbr.web.css.NetworkProcessor;
+import cz.vutbr.web.css.StyleSheet;
+import cz.vutbr.web.csskit.DefaultNetworkProcessor;
+import org.fit.cssbox.swingbox.performance.PageFetcher;
+import org.fit.cssbox.swingbox.performance.SharedHttpClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A cache of the parsed external style sheets shared by all the analyzers.
+ * The style sheets are identified by their absolute URL and the encoding used
+ * for reading them. A cached style sheet is used only when the source has not
+ * changed: the source is fetched each time (the HTTP cache makes this cheap)
+ * and its validator (the ETag or Last-Modified header, or the hash of the
+ * content when there is none) is compared to the validator of the parsed
+ * one. The same applies to the style sheets imported using {@code @import},
+ * which become a part of the parsed style sheet. The parsed style sheets are
+ * never modified by the analysis, so they are shared by all the analyzers.
+ * <p>
+ * The cache is bounded by the estimated size of the parsed style sheets; the
+ * least recently used ones are evicted first. The size limit in bytes may be
+ * set using the {@link Constants#STYLE_SHEET_CACHE_SIZE_PROPERTY} system
+ * property.
+ */
+public final class StyleSheetCache
+{
+    /** The default size limit in bytes */
+    private static final long DEFAULT_MAX_SIZE = 16L * 1024 * 1024;
+    /** The estimated size of an entry without the style sheet */
+    private static final int ENTRY_SIZE = 1024;
+    /** The estimated size of a parsed style sheet per byte of its source */
+    private static final int SIZE_PER_BYTE = 16;
+
+    private static final StyleSheetCache instance = new StyleSheetCache(getDefaultMaxSize());
+
+    private final Map<String, Entry> sheets;
+    private final long maxSize;
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize
+     *            the size limit in bytes
+     */
+    public StyleSheetCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+        sheets = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    /**
+     * Gets the cache shared by all the analyzers.
+     *
+     * @return the shared cache
+     */
+    public static StyleSheetCache getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Gets the parsed style sheet from the given URL. The style sheet is
+     * fetched and parsed when it is not present in the cache or when it has
+     * changed. The returned style sheet may not be modified.
+     *
+     * @param url
+     *            the style sheet URL
+     * @param encoding
+     *            the default encoding of the style sheet
+     * @return the parsed style sheet
+     * @throws IOException
+     *             when the style sheet cannot be fetched
+     * @throws CSSException
+     *             when the style sheet cannot be parsed
+     */
+    public StyleSheet get(URL url, String encoding) throws IOException, CSSException
+    {
+        return get(url, encoding, StyleSheetCache::fetch);
+    }
+
+    /**
+     * Gets the parsed style sheet from the given URL, obtaining the sources
+     * of the style sheet and its imports using the given fetcher.
+     *
+     * @see #get(URL, String)
+     */
+    StyleSheet get(URL url, String encoding, SourceFetcher fetcher) throws IOException, CSSException
+    {
+        final String key = encoding + " " + url.toExternalForm();
+        final Source src = fetcher.fetch(url);
+        final Entry cached = lookup(key);
+        if (cached != null && cached.validator.equals(src.validator) && cached.importsUnchanged(fetcher))
+        {
+            count(true);
+            return cached.sheet;
+        }
+        count(false);
+
+        // parse outside of the lock
+        final Recorder recorder = new Recorder(url, src.data, fetcher);
+        final StyleSheet sheet = CSSFactory.parse(url, recorder, encoding);
+        store(key, new Entry(sheet, src.validator, recorder.imports, recorder.size));
+        return sheet;
+    }
+
+    private synchronized Entry lookup(String key)
+    {
+        return sheets.get(key);
+    }
+
+    private synchronized void count(boolean hit)
+    {
+        if (hit)
+            hits++;
+        else
+            misses++;
+    }
+
+    private synchronized void store(String key, Entry entry)
+    {
+        Entry old = sheets.put(key, entry);
+        if (old != null)
+            size -= old.size;
+        size += entry.size;
+        evict();
+    }
+
+    /**
+     * Removes all the style sheets from the cache. The counters are not
+     * reset.
+     */
+    public synchronized void clear()
+    {
+        sheets.clear();
+        size = 0;
+    }
+
+    /**
+     * Gets the number of style sheets in the cache.
+     *
+     * @return the number of style sheets
+     */
+    public synchronized int getStyleSheetCount()
+    {
+        return sheets.size();
+    }
+
+    /**
+     * Gets the estimated size of the cached style sheets.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the size limit of the cache.
+     *
+     * @return the size limit in bytes
+     */
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Gets the number of requests served from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests that required parsing the style sheet.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Gets the number of style sheets evicted because of the size limit.
+     *
+     * @return the eviction count
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "StyleSheetCache[sheets: " + sheets.size() + ", size: " + size + "/" + maxSize
+                + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + "]";
+    }
+
+    private void evict()
+    {
+        Iterator<Entry> it = sheets.values().iterator();
+        while (size > maxSize && it.hasNext())
+        {
+            Entry oldest = it.next();
+            it.remove();
+            size -= oldest.size;
+            evictions++;
+        }
+    }
+
+    /**
+     * Fetches a style sheet source. The http(s) sources are fetched through
+     * the shared {@link PageFetcher}, so they are served from the HTTP cache
+     * when they have not changed.
+     *
+     * @param url
+     *            the source URL
+     * @return the source
+     * @throws IOException
+     *             when the source cannot be fetched
+     */
+    static Source fetch(URL url) throws IOException
+    {
+        if (SharedHttpClient.isHttp(url))
+        {
+            PageFetcher.Page page = join(PageFetcher.getInstance().fetch(url, null, Constants.USER_AGENT));
+            byte[] data;
+            try (InputStream in = page.getInputStream())
+            {
+                data = in.readAllBytes();
+            }
+            String validator = getHeader(page, "ETag");
+            if (validator == null)
+                validator = getHeader(page, "Last-Modified");
+            return new Source(data, validator);
+        }
+        else
+        {
+            try (InputStream in = new DefaultNetworkProcessor().fetch(url))
+            {
+                return new Source(in.readAllBytes(), null);
+            }
+        }
+    }
+
+    private static <T> T join(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        } catch (InterruptedException e)
+        {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Style sheet load interrupted");
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static String getHeader(PageFetcher.Page page, String name)
+    {
+        List<String> values = page.getHeaders().get(name);
+        return (values == null || values.isEmpty()) ? null : name + ": " + values.get(0);
+    }
+
+    private static long getDefaultMaxSize()
+    {
+        String tmp = System.getProperty(Constants.STYLE_SHEET_CACHE_SIZE_PROPERTY, Constants.PROPERTY_NOT_SET);
+        if (!tmp.equals(Constants.PROPERTY_NOT_SET))
+        {
+            try
+            {
+                return Long.parseLong(tmp);
+            } catch (NumberFormatException ignored)
+            {
+            }
+        }
+        return DEFAULT_MAX_SIZE;
+    }
+
+    /**
+     * Obtains the style sheet sources.
+     */
+    interface SourceFetcher
+    {
+        Source fetch(URL url) throws IOException;
+    }
+
+    /**
+     * A fetched style sheet source.
+     */
+    static final class Source
+    {
+        final byte[] data;
+        /** The HTTP validator or the content hash */
+        final String validator;
+
+        Source(byte[] data, String validator)
+        {
+            this.data = data;
+            this.validator = (validator != null) ? validator : hash(data);
+        }
+
+        private static String hash(byte[] data)
+        {
+            try
+            {
+                return "SHA-256: " + Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(data));
+            } catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Provides the already fetched source to the parser and fetches the
+     * imported style sheets, recording their validators.
+     */
+    private static final class Recorder implements NetworkProcessor
+    {
+        private final URL url;
+        private byte[] data;
+        private final SourceFetcher fetcher;
+        final List<Import> imports = new ArrayList<>();
+        long size;
+
+        Recorder(URL url, byte[] data, SourceFetcher fetcher)
+        {
+            this.url = url;
+            this.data = data;
+            this.fetcher = fetcher;
+            size = ENTRY_SIZE + (long) SIZE_PER_BYTE * data.length;
+        }
+
+        @Override
+        public InputStream fetch(URL u) throws IOException
+        {
+            if (u == url && data != null)
+            {
+                InputStream ret = new ByteArrayInputStream(data);
+                data = null;
+                return ret;
+            }
+            try
+            {
+                Source src = fetcher.fetch(u);
+                imports.add(new Import(u, src.validator));
+                size += (long) SIZE_PER_BYTE * src.data.length;
+                return new ByteArrayInputStream(src.data);
+            } catch (IOException e)
+            {
+                // the import is skipped, check whether it is available later
+                imports.add(new Import(u, null));
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * An imported style sheet.
+     */
+    private static final class Import
+    {
+        final URL url;
+        /** The validator or null when the import could not be fetched */
+        final String validator;
+
+        Import(URL url, String validator)
+        {
+            this.url = url;
+            this.validator = validator;
+        }
+    }
+
+    private static final class Entry
+    {
+        final StyleSheet sheet;
+        final String validator;
+        final List<Import> imports;
+        final long size;
+
+        Entry(StyleSheet sheet, String validator, List<Import> imports, long size)
+        {
+            this.sheet = sheet;
+            this.validator = validator;
+            this.imports = imports;
+            this.size = size;
+        }
+
+        boolean importsUnchanged(SourceFetcher fetcher)
+        {
+            for (Import imp : imports)
+            {
+                String current;
+                try
+                {
+                    current = fetcher.fetch(imp.url).validator;
+                } catch (IOException e)
+                {
+                    current = null;
+                }
+                if (current == null ? imp.validator != null : !current.equals(imp.validator))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import org.fit.net.DataURLHandler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches the style sheets of a document concurrently before they are
+ * needed. Whenever a style sheet arrives, the style sheets it imports are
+ * requested as well, so the whole import tree is being fetched while the
+ * document style sheets are processed in order. The fetches run on the
+ * executor shared by the page loads ({@link NavigationScheduler#getExecutor()}).
+ */
+final class StyleSheetPrefetcher implements StyleSheetCache.SourceFetcher
+{
+    /** An import rule: the URL is either quoted or wrapped in url() */
+    private static final Pattern IMPORT = Pattern.compile(
+            "@import\\s*(?:url\\(\\s*(?:\"([^\"]*)\"|'([^']*)'|([^)\\s]*))\\s*\\)|\"([^\"]*)\"|'([^']*)')",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern COMMENT = Pattern.compile("/\\*.*?(?:\\*/|$)", Pattern.DOTALL);
+
+    private final Map<String, Future<StyleSheetCache.Source>> fetches = new ConcurrentHashMap<>();
+    private volatile boolean cancelled;
+
+    /**
+     * Starts fetching a style sheet and the style sheets it imports. Nothing
+     * happens when the style sheet has already been requested.
+     *
+     * @param url
+     *            the style sheet URL
+     */
+    void prefetch(URL url)
+    {
+        if (!cancelled)
+            fetches.computeIfAbsent(url.toExternalForm(), key -> NavigationScheduler.getExecutor().submit(() -> {
+                StyleSheetCache.Source src = StyleSheetCache.fetch(url);
+                prefetchImports(new String(src.data, StandardCharsets.ISO_8859_1), url);
+                return src;
+            }));
+    }
+
+    /**
+     * Starts fetching the style sheets imported by a style sheet.
+     *
+     * @param css
+     *            the style sheet source
+     * @param base
+     *            the base URL of the style sheet
+     */
+    void prefetchImports(String css, URL base)
+    {
+        // the imports must precede all the rules
+        int end = css.indexOf('{');
+        String head = COMMENT.matcher(end == -1 ? css : css.substring(0, end)).replaceAll(" ");
+        Matcher m = IMPORT.matcher(head);
+        while (m.find())
+        {
+            String path = null;
+            for (int i = 1; path == null; i++)
+                path = m.group(i);
+            path = path.trim();
+            // an empty path would resolve to the base, i.e. the document itself
+            if (path.isEmpty())
+                continue;
+            try
+            {
+                prefetch(DataURLHandler.createURL(base, path));
+            } catch (MalformedURLException ignored)
+            {
+            }
+        }
+    }
+
+    /**
+     * Gets a style sheet source. The prefetched source is used when the style
+     * sheet has been requested, otherwise it is fetched now.
+     */
+    @Override
+    public StyleSheetCache.Source fetch(URL url) throws IOException
+    {
+        Future<StyleSheetCache.Source> future = fetches.get(url.toExternalForm());
+        if (future == null)
+            return StyleSheetCache.fetch(url);
+        try
+        {
+            return future.get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Style sheet load interrupted");
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Cancels the fetches that have not completed, e.g. the style sheets
+     * that turned out not to be used.
+     */
+    void cancel()
+    {
+        cancelled = true;
+        for (Future<StyleSheetCache.Source> future : fetches.values())
+            future.cancel(true);
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextLayout;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the shaped text layouts shared by all the text views. Besides the
+ * text layouts, the cache keeps the glyph vectors used for simple texts that
+ * require no complex layout. The layouts are identified by the text, the font
+ * and the font render context. The cache is bounded by the estimated size of
+ * the layouts; the least recently used layouts are evicted first. The size
+ * limit in bytes may be set using the
+ * {@link Constants#TEXT_LAYOUT_CACHE_SIZE_PROPERTY} system property.
+ */
+public final class TextLayoutCache
+{
+    /** The default size limit in bytes */
+    private static final long DEFAULT_MAX_SIZE = 8L * 1024 * 1024;
+    /** The estimated size of a layout without the text */
+    private static final int ENTRY_SIZE = 512;
+    /** The estimated size of a layout per character */
+    private static final int CHAR_SIZE = 64;
+
+    private static final TextLayoutCache instance = new TextLayoutCache(getDefaultMaxSize());
+
+    private final Map<Key, Object> layouts;
+    private final long maxSize;
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize
+     *            the size limit in bytes
+     */
+    public TextLayoutCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+        layouts = new LinkedHashMap<>(256, 0.75f, true);
+    }
+
+    /**
+     * Gets the cache shared by all the views.
+     *
+     * @return the shared cache
+     */
+    public static TextLayoutCache getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Gets the layout of a text. The layout is created when it is not present
+     * in the cache.
+     *
+     * @param text
+     *            the text, it may not be empty
+     * @param font
+     *            the font
+     * @param frc
+     *            the font render context
+     * @return the layout
+     */
+    public TextLayout getLayout(String text, Font font, FontRenderContext frc)
+    {
+        final Key key = new Key(text, font, frc, false);
+        TextLayout ret = (TextLayout) lookup(key);
+        if (ret == null)
+        {
+            // shape the text outside of the lock
+            ret = new TextLayout(text, font, frc);
+            store(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the glyph vector of a simple text, i.e. a text that requires no
+     * complex layout (see {@link Font#textRequiresLayout(char[], int, int)}).
+     * The glyph vector is created when it is not present in the cache. The
+     * returned glyph vector may not be modified.
+     *
+     * @param text
+     *            the text
+     * @param font
+     *            the font
+     * @param frc
+     *            the font render context
+     * @return the glyph vector
+     */
+    public GlyphVector getGlyphVector(String text, Font font, FontRenderContext frc)
+    {
+        final Key key = new Key(text, font, frc, true);
+        GlyphVector ret = (GlyphVector) lookup(key);
+        if (ret == null)
+        {
+            ret = font.createGlyphVector(frc, text);
+            store(key, ret);
+        }
+        return ret;
+    }
+
+    private synchronized Object lookup(Key key)
+    {
+        Object ret = layouts.get(key);
+        if (ret != null)
+            hits++;
+        else
+            misses++;
+        return ret;
+    }
+
+    private synchronized void store(Key key, Object value)
+    {
+        if (layouts.put(key, value) == null)
+        {
+            size += estimateSize(key.text);
+            evict();
+        }
+    }
+
+    /**
+     * Removes all the layouts from the cache. The counters are not reset.
+     */
+    public synchronized void clear()
+    {
+        layouts.clear();
+        size = 0;
+    }
+
+    /**
+     * Gets the number of layouts in the cache.
+     *
+     * @return the number of layouts
+     */
+    public synchronized int getLayoutCount()
+    {
+        return layouts.size();
+    }
+
+    /**
+     * Gets the estimated size of the cached layouts.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the size limit of the cache.
+     *
+     * @return the size limit in bytes
+     */
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Gets the number of requests served from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests that required shaping the text.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Gets the number of layouts evicted because of the size limit.
+     *
+     * @return the eviction count
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "TextLayoutCache[layouts: " + layouts.size() + ", size: " + size + "/" + maxSize
+                + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + "]";
+    }
+
+    private void evict()
+    {
+        Iterator<Key> it = layouts.keySet().iterator();
+        while (size > maxSize && it.hasNext())
+        {
+            Key oldest = it.next();
+            it.remove();
+            size -= estimateSize(oldest.text);
+            evictions++;
+        }
+    }
+
+    private static long estimateSize(String text)
+    {
+        return ENTRY_SIZE + (long) CHAR_SIZE * text.length();
+    }
+
+    private static long getDefaultMaxSize()
+    {
+        String tmp = System.getProperty(Constants.TEXT_LAYOUT_CACHE_SIZE_PROPERTY, Constants.PROPERTY_NOT_SET);
+        if (!tmp.equals(Constants.PROPERTY_NOT_SET))
+        {
+            try
+            {
+                return Long.parseLong(tmp);
+            } catch (NumberFormatException ignored)
+            {
+            }
+        }
+        return DEFAULT_MAX_SIZE;
+    }
+
+    private static final class Key
+    {
+        final String text;
+        final Font font;
+        final FontRenderContext frc;
+        final boolean glyphs;
+        final int hash;
+
+        Key(String text, Font font, FontRenderContext frc, boolean glyphs)
+        {
+            this.text = text;
+            this.font = font;
+            this.frc = frc;
+            this.glyphs = glyphs;
+            hash = ((text.hashCode() * 31 + font.hashCode()) * 31 + frc.hashCode()) * 2 + (glyphs ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return hash == other.hash && glyphs == other.glyphs && text.equals(other.text)
+                    && font.equals(other.font) && frc.equals(other.frc);
+        }
+    }
+
+}
@@ -0,0 +1,413 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A backing store that keeps the rendered content of a component in
+ * fixed-size tiles. Painting the component then only copies the tiles that
+ * intersect the clip; a tile is rendered again only when a region it
+ * overlaps has been invalidated. The tiles around the visible part of the
+ * component are rendered in advance, one tile at a time between the other
+ * events, so scrolling mostly finds them ready; like any Swing painting, all
+ * the rendering happens on the event dispatch thread. The least recently used
+ * tiles are dropped when their total size exceeds a limit, which may be set
+ * using the {@link Constants#TILE_CACHE_SIZE_PROPERTY} system property.
+ * <p>
+ * The store is used for the untransformed painting only (e.g. not on HiDPI
+ * screens); {@link #paint(Graphics2D)} returns false in the other cases and
+ * the component should paint itself as usual.
+ */
+public class TiledBackingStore
+{
+    /** The tile width and height in pixels */
+    public static final int TILE_SIZE = 256;
+    /** The default size limit in bytes */
+    private static final long DEFAULT_MAX_SIZE = 32L * 1024 * 1024;
+    /** The number of tiles rendered in advance around the visible area */
+    private static final int PREFETCH_MARGIN = 1;
+    /** The number of the recent invalidations remembered */
+    private static final int MAX_INVALIDATIONS = 64;
+    /** The delay between rendering two tiles in advance in milliseconds */
+    private static final int PREFETCH_DELAY = 10;
+
+    private final JComponent component;
+    private final Consumer<Graphics2D> painter;
+    private final long maxSize;
+    /** Renders a single tile in advance when fired */
+    private final Timer prefetcher;
+    private final Map<Long, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+    /** Increased on every invalidation */
+    private long version;
+    /** The version of the last invalidation of all the tiles */
+    private long allVersion;
+    /** The recent invalidated regions, for checking the tiles being rendered */
+    private final Deque<Invalidation> invalidations = new ArrayDeque<>();
+
+    /**
+     * Creates a new backing store using the default size limit.
+     *
+     * @param component
+     *            the component whose content is kept
+     * @param painter
+     *            paints the component content to the given graphics; it is
+     *            called on the event dispatch thread with the clip set to a
+     *            single tile
+     */
+    public TiledBackingStore(JComponent component, Consumer<Graphics2D> painter)
+    {
+        this(component, painter, getDefaultMaxSize());
+    }
+
+    /**
+     * Creates a new backing store.
+     *
+     * @param component
+     *            the component whose content is kept
+     * @param painter
+     *            paints the component content to the given graphics; it is
+     *            called on the event dispatch thread with the clip set to a
+     *            single tile
+     * @param maxSize
+     *            the size limit of the tiles in bytes
+     */
+    public TiledBackingStore(JComponent component, Consumer<Graphics2D> painter, long maxSize)
+    {
+        this.component = component;
+        this.painter = painter;
+        this.maxSize = maxSize;
+        prefetcher = new Timer(PREFETCH_DELAY, e -> prefetchTile());
+        prefetcher.setRepeats(false);
+    }
+
+    /**
+     * Paints the component from the tiles. The missing tiles are rendered.
+     * Must be called on the event dispatch thread.
+     *
+     * @param g
+     *            the component graphics
+     * @return true when the component has been painted, false when the
+     *         transformation of the graphics does not allow using the tiles
+     */
+    public boolean paint(Graphics2D g)
+    {
+        final AffineTransform tx = g.getTransform();
+        if ((tx.getType() & ~AffineTransform.TYPE_TRANSLATION) != 0
+                || tx.getTranslateX() != Math.rint(tx.getTranslateX())
+                || tx.getTranslateY() != Math.rint(tx.getTranslateY()))
+            return false;
+
+        final Rectangle bounds = new Rectangle(0, 0, component.getWidth(), component.getHeight());
+        final Rectangle clip = g.getClipBounds();
+        final Rectangle area = (clip == null) ? bounds : clip.intersection(bounds);
+        if (!area.isEmpty())
+        {
+            for (int row = area.y / TILE_SIZE; row * TILE_SIZE < area.y + area.height; row++)
+                for (int col = area.x / TILE_SIZE; col * TILE_SIZE < area.x + area.width; col++)
+                    g.drawImage(getTile(col, row), col * TILE_SIZE, row * TILE_SIZE, null);
+        }
+        prefetch();
+        return true;
+    }
+
+    /**
+     * Drops the tiles that overlap a region, e.g. when the region is going to
+     * be repainted.
+     *
+     * @param r
+     *            the region in the component coordinates
+     */
+    public synchronized void invalidate(Rectangle r)
+    {
+        if (r.width <= 0 || r.height <= 0)
+            return;
+        version++;
+        invalidations.addLast(new Invalidation(version, new Rectangle(r)));
+        if (invalidations.size() > MAX_INVALIDATIONS)
+            invalidations.removeFirst();
+        if (tiles.isEmpty())
+            return;
+        final int col0 = Math.max(0, r.x / TILE_SIZE);
+        final int row0 = Math.max(0, r.y / TILE_SIZE);
+        final int col1 = (r.x + r.width - 1) / TILE_SIZE;
+        final int row1 = (r.y + r.height - 1) / TILE_SIZE;
+        if ((long) (col1 - col0 + 1) * (row1 - row0 + 1) > tiles.size())
+        {
+            Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<Long, BufferedImage> entry = it.next();
+                int col = (int) (entry.getKey() >> 32);
+                int row = (int) (long) entry.getKey();
+                if (col >= col0 && col <= col1 && row >= row0 && row <= row1)
+                {
+                    it.remove();
+                    release(entry.getValue());
+                }
+            }
+        }
+        else
+        {
+            for (int row = row0; row <= row1; row++)
+            {
+                for (int col = col0; col <= col1; col++)
+                {
+                    BufferedImage tile = tiles.remove(key(col, row));
+                    if (tile != null)
+                        release(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the tiles, e.g. when the component content or size has
+     * changed.
+     */
+    public synchronized void invalidateAll()
+    {
+        version++;
+        allVersion = version;
+        invalidations.clear();
+        for (BufferedImage tile : tiles.values())
+            release(tile);
+        tiles.clear();
+    }
+
+    /**
+     * Stops rendering the tiles in advance, when the store is no longer used.
+     */
+    public void dispose()
+    {
+        prefetcher.stop();
+    }
+
+    /**
+     * Gets the number of the tiles kept.
+     *
+     * @return the number of tiles
+     */
+    public synchronized int getTileCount()
+    {
+        return tiles.size();
+    }
+
+    private BufferedImage getTile(int col, int row)
+    {
+        final long key = key(col, row);
+        final long v;
+        synchronized (this)
+        {
+            BufferedImage tile = tiles.get(key);
+            if (tile != null)
+                return tile;
+            v = version;
+        }
+        BufferedImage tile = render(col, row);
+        store(key, tile, v);
+        return tile;
+    }
+
+    /**
+     * Schedules rendering the missing tiles around the visible area.
+     */
+    private void prefetch()
+    {
+        if (!prefetcher.isRunning() && nextMissingTile() != -1)
+            prefetcher.start();
+    }
+
+    /**
+     * Renders a single missing tile around the visible area and schedules
+     * the next one. Rendering the tiles one by one keeps the event dispatch
+     * thread responsive.
+     */
+    private void prefetchTile()
+    {
+        if (!component.isShowing())
+            return;
+        final long key = nextMissingTile();
+        if (key == -1)
+            return;
+        final long v;
+        synchronized (this)
+        {
+            v = version;
+        }
+        try
+        {
+            store(key, render((int) (key >> 32), (int) key), v);
+        } catch (RuntimeException e)
+        {
+            return; // the tile will be rendered when painted
+        }
+        prefetch();
+    }
+
+    /**
+     * Finds a tile around the visible area that has not been rendered yet.
+     *
+     * @return the tile key or -1 when there is no such tile or the tiles
+     *         would not fit the size limit
+     */
+    private long nextMissingTile()
+    {
+        final Rectangle visible = component.getVisibleRect();
+        if (visible.isEmpty())
+            return -1;
+        final int col0 = Math.max(0, visible.x / TILE_SIZE - PREFETCH_MARGIN);
+        final int row0 = Math.max(0, visible.y / TILE_SIZE - PREFETCH_MARGIN);
+        final int col1 = Math.min((component.getWidth() - 1) / TILE_SIZE,
+                (visible.x + visible.width - 1) / TILE_SIZE + PREFETCH_MARGIN);
+        final int row1 = Math.min((component.getHeight() - 1) / TILE_SIZE,
+                (visible.y + visible.height - 1) / TILE_SIZE + PREFETCH_MARGIN);
+        if ((long) (col1 - col0 + 1) * (row1 - row0 + 1) * tileBytes() > maxSize)
+            return -1;
+
+        synchronized (this)
+        {
+            for (int row = row0; row <= row1; row++)
+                for (int col = col0; col <= col1; col++)
+                    if (!tiles.containsKey(key(col, row)))
+                        return key(col, row);
+        }
+        return -1;
+    }
+
+    private BufferedImage render(int col, int row)
+    {
+        final BufferedImage tile = createTile();
+        final Graphics2D g = tile.createGraphics();
+        g.translate(-col * TILE_SIZE, -row * TILE_SIZE);
+        g.clipRect(col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+        try
+        {
+            painter.accept(g);
+        } finally
+        {
+            g.dispose();
+        }
+        return tile;
+    }
+
+    private BufferedImage createTile()
+    {
+        final int transparency = component.isOpaque() ? Transparency.OPAQUE : Transparency.TRANSLUCENT;
+        final GraphicsConfiguration gc = component.getGraphicsConfiguration();
+        if (gc != null)
+            return gc.createCompatibleImage(TILE_SIZE, TILE_SIZE, transparency);
+        return new BufferedImage(TILE_SIZE, TILE_SIZE,
+                transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private synchronized void store(long key, BufferedImage tile, long v)
+    {
+        if (!isCurrent(key, v))
+            return; // invalidated while rendering
+        BufferedImage old = tiles.put(key, tile);
+        if (old != null)
+            release(old);
+        size += tileBytes();
+        Iterator<BufferedImage> it = tiles.values().iterator();
+        while (size > maxSize && tiles.size() > 1 && it.hasNext())
+        {
+            BufferedImage oldest = it.next();
+            it.remove();
+            release(oldest);
+        }
+    }
+
+    /**
+     * Removes a tile from the size count. The image itself is not reused, as
+     * it may still be being drawn.
+     */
+    private void release(BufferedImage tile)
+    {
+        size -= tileBytes();
+    }
+
+    /**
+     * Checks whether a tile rendered at the given version has not been
+     * invalidated since.
+     */
+    private boolean isCurrent(long key, long v)
+    {
+        if (v == version)
+            return true;
+        if (v < allVersion || invalidations.isEmpty() || invalidations.peekFirst().version > v + 1)
+            return false;
+        final Rectangle bounds = new Rectangle((int) (key >> 32) * TILE_SIZE, (int) key * TILE_SIZE,
+                TILE_SIZE, TILE_SIZE);
+        for (Invalidation inv : invalidations)
+        {
+            if (inv.version > v && inv.region.intersects(bounds))
+                return false;
+        }
+        return true;
+    }
+
+    private static long tileBytes()
+    {
+        return 4L * TILE_SIZE * TILE_SIZE;
+    }
+
+    private static long key(int col, int row)
+    {
+        return ((long) col << 32) | (row & 0xffffffffL);
+    }
+
+    private static long getDefaultMaxSize()
+    {
+        String tmp = System.getProperty(Constants.TILE_CACHE_SIZE_PROPERTY, Constants.PROPERTY_NOT_SET);
+        if (!tmp.equals(Constants.PROPERTY_NOT_SET))
+        {
+            try
+            {
+                return Long.parseLong(tmp);
+            } catch (NumberFormatException ignored)
+            {
+            }
+        }
+        return DEFAULT_MAX_SIZE;
+    }
+
+    private static final class Invalidation
+    {
+        final long version;
+        final Rectangle region;
+
+        Invalidation(long version, Rectangle region)
+        {
+            this.version = version;
+            this.region = region;
+        }
+    }
+
+}
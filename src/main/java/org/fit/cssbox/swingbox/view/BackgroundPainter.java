@@ -0,0 +1,321 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.view;
+
+import org.fit.cssbox.layout.BackgroundImage;
+import org.fit.cssbox.layout.ElementBox;
+import org.fit.cssbox.layout.Viewport;
+import org.fit.cssbox.swingbox.util.AsyncImageCache;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.MultiResolutionImage;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paints the backgrounds of the boxes the same way as
+ * {@link ElementBox#drawBackground(Graphics2D)} does, but without rendering
+ * the background images into a new image of the whole box size on every
+ * repaint. Each background image is scaled once to its tile size; the tiles
+ * are shared by all the boxes using the same image at the same size and the
+ * boxes are filled with them only inside the current clip. The least recently
+ * used tiles are released when their total size exceeds a limit. The tiles
+ * refer to their source images weakly, so they do not keep the images (and
+ * their encoded data) of the pages already left; the tiles of the collected
+ * images are released.
+ * <p>
+ * The backgrounds not supported (e.g. the images not loaded by an
+ * {@link AsyncImageCache}) are painted by the box itself.
+ * <p>
+ * The image coordinates and the borders are computed by the protected
+ * methods of the cssbox version SwingBox depends on; with a version that does
+ * not have them, this class fails to initialize with an
+ * {@link IllegalStateException}.
+ */
+final class BackgroundPainter
+{
+    /** The largest tile kept, in pixels */
+    private static final long MAX_TILE_PIXELS = 2L * 1024 * 1024;
+    /** The total size of the kept tiles, in pixels */
+    private static final long MAX_CACHE_PIXELS = 8L * 1024 * 1024;
+
+    private static final Method computeCoordinates = findMethod(BackgroundImage.class, "computeCoordinates",
+            Rectangle.class);
+    private static final Method drawBorders = findMethod(ElementBox.class, "drawBorders",
+            Graphics2D.class, int.class, int.class, int.class, int.class);
+
+    private static final Map<TileKey, BufferedImage> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedPixels;
+
+    private BackgroundPainter()
+    {
+    }
+
+    /**
+     * Paints the background and the borders of a box.
+     *
+     * @param g
+     *            the graphics
+     * @param box
+     *            the box
+     */
+    static void paint(Graphics2D g, ElementBox box)
+    {
+        final List<BackgroundImage> images = box.getBackgroundImages();
+        if (images == null || images.isEmpty() || !isSupported(images))
+        {
+            box.drawBackground(g);
+            return;
+        }
+
+        final Color color = g.getColor();
+        final Shape oldclip = g.getClip();
+        if (box instanceof Viewport && box.getBgcolor() != null)
+        {
+            g.setColor(box.getBgcolor());
+            g.fillRect(0, 0, box.getWidth(), box.getHeight());
+        }
+        if (box.getClipBlock() != null)
+            g.setClip(applyClip(oldclip, box.getClipBlock().getClippedContentBounds()));
+        box.getVisualContext().updateGraphics(g);
+
+        final Rectangle brd = box.getAbsoluteBorderBounds();
+        if (box.getBgcolor() != null)
+        {
+            g.setColor(box.getBgcolor());
+            g.fillRect(brd.x, brd.y, brd.width, brd.height);
+        }
+        final Rectangle bg = box.getAbsoluteBackgroundBounds();
+        for (BackgroundImage img : images)
+            paintImage(g, box, img, bg);
+        invoke(drawBorders, box, g, brd.x, brd.y, brd.x + brd.width - 1, brd.y + brd.height - 1);
+
+        g.setClip(oldclip);
+        g.setColor(color);
+    }
+
+    private static boolean isSupported(List<BackgroundImage> images)
+    {
+        for (BackgroundImage img : images)
+        {
+            Image image = img.getImage();
+            if (image != null && !(image instanceof BufferedImage || image instanceof MultiResolutionImage))
+                return false;
+        }
+        return true;
+    }
+
+    private static void paintImage(Graphics2D g, ElementBox box, BackgroundImage img, Rectangle bg)
+    {
+        if (img.getImage() == null || AsyncImageCache.isPending(img))
+            return;
+        if (img.getIntrinsicWidth() != img.getImage().getWidth(null)
+                || img.getIntrinsicHeight() != img.getImage().getHeight(null))
+        {
+            // measured while the image was being loaded
+            img.reset();
+            img.getIntrinsicWidth();
+        }
+        final Image image = img.getImage();
+        if (image == null)
+            return;
+        // the viewport background covers the whole canvas
+        final Rectangle bounds = (box instanceof Viewport) ? box.getClippedBounds() : bg;
+        if (bounds.width <= 0 || bounds.height <= 0)
+            return;
+        invoke(computeCoordinates, img, bounds);
+        final int w = img.getImgWidth();
+        final int h = img.getImgHeight();
+        if (w <= 0 || h <= 0)
+            return;
+
+        // the part of the background covered by the tiles
+        final int x0 = bg.x + img.getImgX();
+        final int y0 = bg.y + img.getImgY();
+        Rectangle region = new Rectangle(bg.x, bg.y, bounds.width, bounds.height);
+        if (!img.isRepeatX())
+            region = region.intersection(new Rectangle(x0, region.y, w, region.height));
+        if (!img.isRepeatY())
+            region = region.intersection(new Rectangle(region.x, y0, region.width, h));
+        final Rectangle clip = g.getClipBounds();
+        if (clip != null)
+            region = region.intersection(clip);
+        if (region.isEmpty())
+            return;
+
+        final BufferedImage tile = getTile(image, w, h, img.getIntrinsicWidth(), img.getIntrinsicHeight());
+        if (tile != null && (g.getTransform().getType() & ~AffineTransform.TYPE_TRANSLATION) == 0)
+        {
+            // the tiles are copied without scaling, a texture fill gives the same pixels
+            final Paint paint = g.getPaint();
+            g.setPaint(new TexturePaint(tile, new Rectangle(x0, y0, w, h)));
+            g.fill(region);
+            g.setPaint(paint);
+        }
+        else
+        {
+            // the visible tiles are drawn one by one so that they are interpolated
+            final Shape oldclip = g.getClip();
+            g.clip(region);
+            final int sx = region.x - Math.floorMod(region.x - x0, w);
+            final int sy = region.y - Math.floorMod(region.y - y0, h);
+            for (int y = sy; y < region.y + region.height; y += h)
+            {
+                for (int x = sx; x < region.x + region.width; x += w)
+                {
+                    if (tile != null)
+                        g.drawImage(tile, x, y, null);
+                    else // too large for keeping
+                        g.drawImage(image, x, y, x + w, y + h, 0, 0, img.getIntrinsicWidth(), img.getIntrinsicHeight(), null);
+                }
+            }
+            g.setClip(oldclip);
+        }
+    }
+
+    /**
+     * Gets the image scaled to the tile size, from the cache when possible.
+     *
+     * @return the tile or null when it is too large for keeping
+     */
+    private static BufferedImage getTile(Image image, int w, int h, int iw, int ih)
+    {
+        final long pixels = (long) w * h;
+        if (pixels > MAX_TILE_PIXELS)
+            return null;
+        final TileKey key = new TileKey(image, w, h);
+        synchronized (BackgroundPainter.class)
+        {
+            BufferedImage ret = tiles.get(key);
+            if (ret != null)
+                return ret;
+        }
+
+        // the same scaling as cssbox uses for the background images
+        BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D tg = tile.createGraphics();
+        tg.drawImage(image, 0, 0, w, h, 0, 0, iw, ih, null);
+        tg.dispose();
+
+        synchronized (BackgroundPainter.class)
+        {
+            BufferedImage old = tiles.put(key, tile);
+            if (old != null)
+                cachedPixels -= (long) old.getWidth() * old.getHeight();
+            cachedPixels += pixels;
+            Iterator<Map.Entry<TileKey, BufferedImage>> it = tiles.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<TileKey, BufferedImage> entry = it.next();
+                if (cachedPixels > MAX_CACHE_PIXELS || entry.getKey().image.get() == null)
+                {
+                    it.remove();
+                    cachedPixels -= (long) entry.getValue().getWidth() * entry.getValue().getHeight();
+                }
+            }
+        }
+        return tile;
+    }
+
+    private static Rectangle applyClip(Shape current, Rectangle newclip)
+    {
+        if (current == null)
+            return newclip;
+        if (current instanceof Rectangle)
+            return ((Rectangle) current).intersection(newclip);
+        return current.getBounds().intersection(newclip);
+    }
+
+    private static void invoke(Method method, Object target, Object... args)
+    {
+        try
+        {
+            method.invoke(target, args);
+        } catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Method findMethod(Class<?> cls, String name, Class<?>... types)
+    {
+        try
+        {
+            Method m = cls.getDeclaredMethod(name, types);
+            m.setAccessible(true);
+            return m;
+        } catch (ReflectiveOperationException | RuntimeException e)
+        {
+            throw new IllegalStateException(cls.getSimpleName() + "." + name
+                    + " is not accessible, unsupported cssbox version", e);
+        }
+    }
+
+    /**
+     * Identifies a tile by the source image instance and the tile size. The
+     * image is not kept by the key; a key whose image has been collected is
+     * only equal to itself.
+     */
+    private static final class TileKey
+    {
+        private final WeakReference<Image> image;
+        private final int hash;
+        private final int width;
+        private final int height;
+
+        TileKey(Image image, int width, int height)
+        {
+            this.image = new WeakReference<>(image);
+            this.hash = (System.identityHashCode(image) * 31 + width) * 31 + height;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof TileKey))
+                return false;
+            TileKey other = (TileKey) obj;
+            Image img = image.get();
+            return img != null && img == other.image.get() && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+}
@@ -22,10 +22,10 @@ import org.fit.cssbox.layout.ElementBox;
 import org.fit.cssbox.swingbox.util.Anchor;
 import org.fit.cssbox.swingbox.util.Constants;
 
+import javax.swing.event.DocumentEvent;
 import javax.swing.text.*;
 import javax.swing.text.Position.Bias;
 import java.awt.*;
-import java.util.Map;
 
 /**
  * @author Peter Bielik
@@ -34,14 +34,14 @@ import java.util.Map;
  */
 public class BackgroundView extends View implements CSSBoxView
 {
-    private final ElementBox box;
-    private final int order;
+    private ElementBox box;
+    private int order;
     
     /** the cache of attributes */
     private AttributeSet attributes;
     /** decides whether to construct a cache from current working properties */
     private boolean refreshAttributes;
-    private final Anchor anchor;
+    private Anchor anchor;
 
     public BackgroundView(Element elem)
     {
@@ -60,31 +60,6 @@ public class BackgroundView extends View implements CSSBoxView
         {
             throw new IllegalArgumentException("Box reference is not an instance of ElementBox");
         }
-        
-        if (box.getElement() != null)
-        {
-            Map<String, String> elementAttributes = anchor.getProperties();
-            org.w3c.dom.Element pelem = Anchor.findAnchorElement(box.getElement());
-            if (pelem != null)
-            {
-                anchor.setActive(true);
-                elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_HREF, pelem.getAttribute("href"));
-                elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_NAME, pelem.getAttribute("name"));
-                elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_TITLE, pelem.getAttribute("title"));
-                String target = pelem.getAttribute("target");
-                if ("".equals(target))
-                {
-                    target = "_self";
-                }
-                elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_TARGET, target);
-            }
-            else
-            {
-                anchor.setActive(false);
-                elementAttributes.clear();
-            }
-        }
-        
     }
 
     @Override
@@ -103,16 +78,38 @@ public class BackgroundView extends View implements CSSBoxView
             throw new RuntimeException("Unknown graphics environment, java.awt.Graphics2D required !");
         
         box.getVisualContext().updateGraphics(g);
-        box.drawBackground(g);
+        BackgroundPainter.paint(g, box);
     }
     
     @Override
     public void setParent(View parent)
     {
         super.setParent(parent);
+        if (parent != null)
+            ElementBoxView.watchBackgroundImages(this, box);
         refreshAttributes = true;
     }
 
+    @Override
+    public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f)
+    {
+        // the document may have been rebound to a new box tree after a resize
+        AttributeSet tmpAttr = getElement().getAttributes();
+        Object obj = tmpAttr.getAttribute(Constants.ATTRIBUTE_BOX_REFERENCE);
+        if (obj instanceof ElementBox)
+        {
+            boolean changed = obj != box;
+            box = (ElementBox) obj;
+            Integer i = (Integer) tmpAttr.getAttribute(Constants.ATTRIBUTE_DRAWING_ORDER);
+            order = (i == null) ? -1 : i;
+            anchor = (Anchor) tmpAttr.getAttribute(Constants.ATTRIBUTE_ANCHOR_REFERENCE);
+            refreshAttributes = true;
+            if (changed && getParent() != null)
+                ElementBoxView.watchBackgroundImages(this, box);
+        }
+        super.changedUpdate(e, a, f);
+    }
+
     @Override
     public boolean isVisible()
     {
@@ -19,6 +19,7 @@
 package org.fit.cssbox.swingbox.view;
 
 import org.fit.cssbox.layout.BlockBox;
+import org.fit.cssbox.layout.ElementBox;
 
 import javax.swing.text.AttributeSet;
 import javax.swing.text.Element;
@@ -33,7 +34,7 @@ import java.awt.*;
  */
 public class BlockBoxView extends ElementBoxView
 {
-    private final String overflowX;
+    private String overflowX;
 
     /**
      * @param elem
@@ -45,6 +46,13 @@ public class BlockBoxView extends ElementBoxView
         overflowX = ((BlockBox) box).getOverflowXString();
     }
 
+    @Override
+    protected void updateBox(ElementBox newBox)
+    {
+        super.updateBox(newBox);
+        overflowX = ((BlockBox) box).getOverflowXString();
+    }
+
     @Override
     public AttributeSet getAttributes()
     {
@@ -74,24 +82,23 @@ public class BlockBoxView extends ElementBoxView
     }
 
     @Override
-    public void paint(Graphics g, Shape a)
+    protected boolean isPainted()
     {
-        if (box.isDisplayed() && box.isDeclaredVisible())
-        {
-            Rectangle tmpRect = new Rectangle();
-            if ("visible".equals(overflowX))
-            {
-                // just let it be
-                tmpRect = toRect(a);
-            }
-            else
-            {
-                // cut it !
-                intersection(box.getAbsoluteBounds(), toRect(a), tmpRect);
-            }
-
-            super.paint(g, tmpRect);
+        return box.isDisplayed() && box.isDeclaredVisible();
+    }
 
+    @Override
+    protected Rectangle getOverflowBounds()
+    {
+        if ("visible".equals(overflowX))
+        {
+            // just let it be
+            return null;
+        }
+        else
+        {
+            // cut it !
+            return box.getAbsoluteBounds();
         }
     }
 
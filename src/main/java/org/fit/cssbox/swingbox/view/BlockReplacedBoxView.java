@@ -19,8 +19,10 @@
 package org.fit.cssbox.swingbox.view;
 
 import org.fit.cssbox.layout.BlockReplacedBox;
+import org.fit.cssbox.layout.ElementBox;
 import org.fit.cssbox.layout.ReplacedContent;
 import org.fit.cssbox.layout.ReplacedImage;
+import org.fit.cssbox.swingbox.util.AsyncImageCache;
 import org.fit.cssbox.swingbox.util.Constants;
 
 import javax.swing.text.*;
@@ -42,6 +44,8 @@ public class BlockReplacedBoxView extends BlockBoxView
     private Container container;
     private ReplacedContent content;
     private ReplacedImage repImage;
+    /** the image scaled to the box size */
+    private final ReplacedImageRaster raster = new ReplacedImageRaster();
     private String alt = "";
     private String title = "";
 
@@ -69,6 +73,27 @@ public class BlockReplacedBoxView extends BlockBoxView
         loadElementAttributes();
     }
 
+    @Override
+    protected void updateBox(ElementBox newBox)
+    {
+        super.updateBox(newBox);
+        content = ((BlockReplacedBox) box).getContentObj();
+        if (content instanceof ReplacedImage)
+        {
+            repImage = (ReplacedImage) content;
+            if (container != null)
+            {
+                ImageRepaintObserver.observe(repImage, container);
+                watchImage();
+            }
+        }
+        else
+        {
+            repImage = null;
+        }
+        if (container != null) watchBackgroundImages(this, box);
+    }
+
     private void loadElementAttributes()
     {
         /*
@@ -95,11 +120,12 @@ public class BlockReplacedBoxView extends BlockBoxView
         {
             paintHighlights(g, alloc);
             box.getVisualContext().updateGraphics(g);
-            box.drawBackground(g);
+            BackgroundPainter.paint(g, box);
 
             if (content != null)
             {
-                content.draw(g, box.getContentWidth(), box.getContentHeight());
+                if (repImage == null || !raster.draw(g, repImage, box.getAbsoluteContentBounds()))
+                    content.draw(g, box.getContentWidth(), box.getContentHeight());
 
                 if (repImage != null && repImage.getImage() == null)
                 {
@@ -146,6 +172,21 @@ public class BlockReplacedBoxView extends BlockBoxView
         return box.isDisplayed() && box.isVisible();
     }
 
+    /**
+     * Updates the view when the image that is being loaded arrives.
+     */
+    private void watchImage()
+    {
+        final ReplacedImage img = repImage;
+        if (img != null)
+        {
+            AsyncImageCache.whenLoaded(img, () -> {
+                if (img == repImage && container != null)
+                    replacedImageLoaded(img);
+            });
+        }
+    }
+
     @Override
     public void setParent(View parent)
     {
@@ -153,12 +194,15 @@ public class BlockReplacedBoxView extends BlockBoxView
         if (parent != null)
         {
             container = getContainer();
-            if (repImage != null) repImage.setContainer(container);// getContainer());
+            if (repImage != null) ImageRepaintObserver.observe(repImage, container);
+            watchImage();
+            watchBackgroundImages(this, box);
         }
         else
         {
             repImage = null;
             content = null;
+            raster.invalidate();
             container = null;
         }
     }
@@ -0,0 +1,274 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.view;
+
+import javax.swing.text.View;
+import java.awt.*;
+
+/**
+ * A flattened list of everything painted below a root view. The items are
+ * kept in the drawing order: the views are created from the element specs in
+ * the drawing order assigned by the ContentReader, so the document order of
+ * the views is the drawing order. The leaf views (backgrounds, text and
+ * replaced content) are painted as a whole, the composite views contribute
+ * their own painting before and after their children. The items are bucketed
+ * by vertical bands so that painting a strip only visits the items that may
+ * intersect it.
+ */
+final class DisplayList
+{
+    /** The height of a band in pixels */
+    private static final int BAND_HEIGHT = 64;
+
+    private static final byte LEAF = 0;
+    private static final byte BEFORE_CHILDREN = 1;
+    private static final byte AFTER_CHILDREN = 2;
+
+    private byte[] kinds;
+    private View[] views;
+    /** The bounds of the items (x, y, width, height) */
+    private int[] bounds;
+    /** The rectangles the allocation of the items is limited to (or null) */
+    private Rectangle[] cuts;
+    private int count;
+
+    private int originY;
+    private int bandCount;
+    /** The first item of each band in {@link #bandItems}, one more for the end */
+    private int[] bandStart;
+    private int[] bandItems;
+
+    /**
+     * Creates the display list for the descendants of the given view.
+     *
+     * @param root
+     *            the root view
+     */
+    DisplayList(ElementBoxView root)
+    {
+        kinds = new byte[64];
+        views = new View[64];
+        bounds = new int[256];
+        cuts = new Rectangle[64];
+        addChildren(root, null);
+        buildBands();
+    }
+
+    /**
+     * Paints the items that intersect the current clip.
+     *
+     * @param g
+     *            the graphics context
+     * @param allocation
+     *            the allocation of the root view
+     */
+    void paint(Graphics2D g, Shape allocation)
+    {
+        Rectangle clip = ElementBoxView.toRect(g.getClip());
+        if (count == 0 || clip.width <= 0 || clip.height <= 0)
+            return;
+        int first = Math.max(0, Math.floorDiv(clip.y - originY, BAND_HEIGHT));
+        int last = Math.min(bandCount - 1, Math.floorDiv(clip.y + clip.height - 1 - originY, BAND_HEIGHT));
+        if (first > last)
+            return;
+
+        Rectangle alloc = ElementBoxView.toRect(allocation);
+        Rectangle tmpRect = new Rectangle();
+        // merge the sorted item lists of the bands, the items spanning several
+        // bands are painted once
+        final int n = last - first + 1;
+        final int[] pos = new int[n];
+        for (int b = 0; b < n; b++)
+            pos[b] = bandStart[first + b];
+        int prev = -1;
+        while (true)
+        {
+            int next = Integer.MAX_VALUE;
+            for (int b = 0; b < n; b++)
+            {
+                int end = bandStart[first + b + 1];
+                while (pos[b] < end && bandItems[pos[b]] <= prev)
+                    pos[b]++;
+                if (pos[b] < end && bandItems[pos[b]] < next)
+                    next = bandItems[pos[b]];
+            }
+            if (next == Integer.MAX_VALUE)
+                break;
+            paintItem(g, next, clip, allocation, alloc, tmpRect);
+            prev = next;
+        }
+    }
+
+    private void paintItem(Graphics2D g, int i, Rectangle clip, Shape allocation, Rectangle alloc, Rectangle tmpRect)
+    {
+        if (intersects(clip, i))
+        {
+            switch (kinds[i])
+            {
+                case BEFORE_CHILDREN:
+                    ((ElementBoxView) views[i]).paintBackground(g);
+                    break;
+                case AFTER_CHILDREN:
+                    ((ElementBoxView) views[i]).paintForeground(g);
+                    break;
+                default:
+                    if (cuts[i] == null)
+                        views[i].paint(g, allocation);
+                    else
+                    {
+                        ElementBoxView.intersection(cuts[i], alloc, tmpRect);
+                        views[i].paint(g, tmpRect);
+                    }
+            }
+        }
+    }
+
+    private boolean intersects(Rectangle r, int i)
+    {
+        int x = bounds[4 * i];
+        int y = bounds[4 * i + 1];
+        int w = bounds[4 * i + 2];
+        int h = bounds[4 * i + 3];
+        if (r.width <= 0 || r.height <= 0 || w <= 0 || h <= 0)
+            return false;
+        return r.x < x + w && r.y < y + h && x < r.x + r.width && y < r.y + r.height;
+    }
+
+    /**
+     * Adds the children of a composite view.
+     *
+     * @param parent
+     *            the parent view
+     * @param cut
+     *            the rectangle the allocation of the children is limited to
+     */
+    private void addChildren(ElementBoxView parent, Rectangle cut)
+    {
+        final int[] cb = parent.getChildBounds();
+        for (int i = 0; i < parent.getViewCount(); i++)
+        {
+            if (cb[4 * i + 2] <= 0 || cb[4 * i + 3] <= 0)
+                continue; //never painted
+            int x = cb[4 * i];
+            int y = cb[4 * i + 1];
+            int w = cb[4 * i + 2];
+            int h = cb[4 * i + 3];
+
+            View v = parent.getView(i);
+            if (v instanceof ElementBoxView && v.getViewCount() > 0)
+            {
+                ElementBoxView ev = (ElementBoxView) v;
+                if (ev.isPainted())
+                {
+                    Rectangle ccut = cut;
+                    Rectangle overflow = ev.getOverflowBounds();
+                    if (overflow != null)
+                    {
+                        ccut = new Rectangle();
+                        if (cut == null)
+                            ccut.setBounds(overflow);
+                        else
+                            ElementBoxView.intersection(overflow, cut, ccut);
+                    }
+                    addItem(BEFORE_CHILDREN, ev, cut, x, y, w, h);
+                    addChildren(ev, ccut);
+                    addItem(AFTER_CHILDREN, ev, cut, x, y, w, h);
+                }
+            }
+            else
+                addItem(LEAF, v, cut, x, y, w, h);
+        }
+    }
+
+    private void addItem(byte kind, View v, Rectangle cut, int x, int y, int w, int h)
+    {
+        if (count == views.length)
+        {
+            int n = count * 2;
+            byte[] nk = new byte[n];
+            System.arraycopy(kinds, 0, nk, 0, count);
+            kinds = nk;
+            View[] nv = new View[n];
+            System.arraycopy(views, 0, nv, 0, count);
+            views = nv;
+            Rectangle[] nc = new Rectangle[n];
+            System.arraycopy(cuts, 0, nc, 0, count);
+            cuts = nc;
+            int[] nb = new int[4 * n];
+            System.arraycopy(bounds, 0, nb, 0, 4 * count);
+            bounds = nb;
+        }
+        kinds[count] = kind;
+        views[count] = v;
+        cuts[count] = cut;
+        bounds[4 * count] = x;
+        bounds[4 * count + 1] = y;
+        bounds[4 * count + 2] = w;
+        bounds[4 * count + 3] = h;
+        count++;
+    }
+
+    private void buildBands()
+    {
+        int y1 = Integer.MAX_VALUE;
+        int y2 = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++)
+        {
+            y1 = Math.min(y1, bounds[4 * i + 1]);
+            y2 = Math.max(y2, bounds[4 * i + 1] + bounds[4 * i + 3]);
+        }
+        if (count == 0)
+        {
+            bandCount = 0;
+            bandStart = new int[1];
+            bandItems = new int[0];
+            return;
+        }
+        originY = y1;
+        bandCount = (int) (((long) y2 - y1 + BAND_HEIGHT - 1) / BAND_HEIGHT);
+
+        // count the items per band first, then fill them
+        bandStart = new int[bandCount + 1];
+        for (int i = 0; i < count; i++)
+        {
+            for (int b = firstBand(i); b <= lastBand(i); b++)
+                bandStart[b + 1]++;
+        }
+        for (int b = 1; b <= bandCount; b++)
+            bandStart[b] += bandStart[b - 1];
+        bandItems = new int[bandStart[bandCount]];
+        int[] fill = new int[bandCount];
+        for (int i = 0; i < count; i++)
+        {
+            for (int b = firstBand(i); b <= lastBand(i); b++)
+                bandItems[bandStart[b] + fill[b]++] = i;
+        }
+    }
+
+    private int firstBand(int i)
+    {
+        return (bounds[4 * i + 1] - originY) / BAND_HEIGHT;
+    }
+
+    private int lastBand(int i)
+    {
+        return (bounds[4 * i + 1] + bounds[4 * i + 3] - 1 - originY) / BAND_HEIGHT;
+    }
+
+}
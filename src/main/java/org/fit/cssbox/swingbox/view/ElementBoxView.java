@@ -18,18 +18,21 @@
 
 package org.fit.cssbox.swingbox.view;
 
+import org.fit.cssbox.layout.BackgroundImage;
 import org.fit.cssbox.layout.BlockBox;
 import org.fit.cssbox.layout.Box;
+import org.fit.cssbox.layout.CSSDecoder;
 import org.fit.cssbox.layout.ElementBox;
+import org.fit.cssbox.layout.ReplacedImage;
 import org.fit.cssbox.swingbox.util.Anchor;
+import org.fit.cssbox.swingbox.util.AsyncImageCache;
 import org.fit.cssbox.swingbox.util.Constants;
 
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.text.*;
 import java.awt.*;
-import java.util.Map;
-import java.util.Vector;
+import java.util.BitSet;
 
 /**
  * @author Peter Bielik
@@ -55,6 +58,12 @@ public class ElementBoxView extends CompositeView implements CSSBoxView
     private boolean minorReqValid;
     private SizeRequirements majorRequest;
     private SizeRequirements minorRequest;
+    /** the index used for locating views, kept by the root view only */
+    private HitIndex hitIndex;
+    /** the list of the painted items, kept by the root view only */
+    private DisplayList displayList;
+    /** the complete allocations of the child views (x, y, width, height) */
+    private int[] childBounds;
 
     public ElementBoxView(Element elem)
     {
@@ -93,33 +102,6 @@ public class ElementBoxView extends CompositeView implements CSSBoxView
         }
 
         oldDimension = new Dimension();
-
-        loadElementAttributes();
-    }
-
-    private void loadElementAttributes()
-    {
-        org.w3c.dom.Element elem = Anchor.findAnchorElement(box.getElement());
-        Map<String, String> elementAttributes = anchor.getProperties();
-
-        if (elem != null)
-        {
-            anchor.setActive(true);
-            elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_HREF, elem.getAttribute("href"));
-            elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_NAME, elem.getAttribute("name"));
-            elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_TITLE, elem.getAttribute("title"));
-            String target = elem.getAttribute("target");
-            if ("".equals(target))
-            {
-                target = "_self";
-            }
-            elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_TARGET, target);
-        }
-        else
-        {
-            anchor.setActive(false);
-            elementAttributes.clear();
-        }
     }
 
     @Override
@@ -274,6 +256,8 @@ public class ElementBoxView extends CompositeView implements CSSBoxView
     public void replace(int offset, int length, View[] views)
     {
         super.replace(offset, length, views);
+        invalidateRootCaches();
+        childBounds = null;
 
         majorReqValid = false;
         majorAllocValid = false;
@@ -281,6 +265,132 @@ public class ElementBoxView extends CompositeView implements CSSBoxView
         minorAllocValid = false;
     }
 
+    @Override
+    public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f)
+    {
+        // the document may have been rebound to a new box tree after a resize
+        Object obj = getElement().getAttributes().getAttribute(Constants.ATTRIBUTE_BOX_REFERENCE);
+        final boolean rebound = obj instanceof ElementBox && obj != box;
+        if (rebound)
+        {
+            updateBox((ElementBox) obj);
+        }
+        super.changedUpdate(e, a, f);
+        if (rebound)
+        {
+            // forwarding the update has obtained the child allocations before
+            // the children were rebound, drop them now that they are bound;
+            // the same holds for the display list and the hit index built
+            // from them
+            childBounds = null;
+            invalidateRootCaches();
+        }
+    }
+
+    /**
+     * Binds this view to a new box that corresponds to the same element after
+     * a re-layout of the document. The subclasses that keep any box-related
+     * state should override this method and refresh the state.
+     * 
+     * @param newBox
+     *            the new box
+     */
+    protected void updateBox(ElementBox newBox)
+    {
+        box = newBox;
+        AttributeSet tmpAttr = getElement().getAttributes();
+        Integer i = (Integer) tmpAttr.getAttribute(Constants.ATTRIBUTE_DRAWING_ORDER);
+        order = (i == null) ? -1 : i;
+        Object obj = tmpAttr.getAttribute(Constants.ATTRIBUTE_ANCHOR_REFERENCE);
+        if (obj instanceof Anchor)
+        {
+            anchor = (Anchor) obj;
+        }
+        majorAxis = Y_AXIS;
+        if (box instanceof BlockBox && ((BlockBox) box).isFloating())
+        {
+            majorAxis = X_AXIS;
+        }
+
+        majorReqValid = false;
+        majorAllocValid = false;
+        minorReqValid = false;
+        minorAllocValid = false;
+        hitIndex = null;
+        displayList = null;
+        childBounds = null;
+        invalidateCache();
+    }
+
+    /**
+     * Called when the image of a replaced box has been loaded in the
+     * background. When the image does not change the size of the box, the
+     * image is decoded for the box size and the box is repainted; otherwise,
+     * a new layout is scheduled.
+     *
+     * @param img
+     *            the loaded image
+     */
+    protected void replacedImageLoaded(ReplacedImage img)
+    {
+        Rectangle before = CSSDecoder.computeReplacedObjectSize(img, box);
+        img.reset();
+        Rectangle after = CSSDecoder.computeReplacedObjectSize(img, box);
+        if (before.width == after.width && before.height == after.height)
+        {
+            AsyncImageCache.prepare(img, box.getContentWidth(), box.getContentHeight(), () -> {
+                if (box != null)
+                    repaintBox(this, box.getAbsoluteBounds());
+            });
+        }
+        else
+            relayout();
+    }
+
+    /**
+     * Schedules a new layout of the whole document, e.g. when the size of a
+     * replaced box has changed.
+     */
+    protected void relayout()
+    {
+        View v = this;
+        while (v != null && !(v instanceof ViewportView))
+            v = v.getParent();
+        if (v != null)
+            ((ViewportView) v).relayout();
+    }
+
+    /**
+     * Repaints the background of a box when its background images are
+     * loaded or animated. The background images never influence the layout.
+     *
+     * @param view
+     *            the view painting the background
+     * @param box
+     *            the box
+     */
+    static void watchBackgroundImages(View view, ElementBox box)
+    {
+        if (box.getBackgroundImages() == null)
+            return;
+        for (BackgroundImage img : box.getBackgroundImages())
+        {
+            ImageRepaintObserver.observe(img, view.getContainer());
+            AsyncImageCache.whenLoaded(img, () -> {
+                img.reset();
+                img.getIntrinsicWidth(); // takes the loaded image from the cache
+                repaintBox(view, box.getAbsoluteBorderBounds());
+            });
+        }
+    }
+
+    static void repaintBox(View view, Rectangle bounds)
+    {
+        Container c = view.getContainer();
+        if (c != null)
+            c.repaint(bounds.x, bounds.y, bounds.width, bounds.height);
+    }
+
     @Override
     protected void forwardUpdate(DocumentEvent.ElementChange ec,
             DocumentEvent e, Shape a, ViewFactory f)
@@ -406,28 +516,92 @@ public class ElementBoxView extends CompositeView implements CSSBoxView
         else
             throw new RuntimeException("Unknown graphics environment, java.awt.Graphics2D required !");
 
+        if (isPainted())
+        {
+            paintBackground(g);
+            if (getParent() instanceof ElementBoxView)
+            {
+                Rectangle overflow = getOverflowBounds();
+                if (overflow != null)
+                {
+                    Rectangle tmpRect = new Rectangle();
+                    intersection(overflow, toRect(allocation), tmpRect);
+                    paintChildren(g, tmpRect);
+                }
+                else
+                    paintChildren(g, allocation);
+            }
+            else
+            {
+                // the root paints the whole tree using the display list
+                getDisplayList().paint(g, allocation);
+            }
+            paintForeground(g);
+        }
+    }
+
+    private void paintChildren(Graphics2D g, Shape allocation)
+    {
         Rectangle clip = toRect(g.getClip());
 
-        Rectangle alloc = toRect(allocation);
+        final int[] cb = getChildBounds();
         int count = getViewCount();
         for (int i = 0; i < count; i++)
         {
-            Rectangle bounds = new Rectangle(alloc);
-            childAllocation(i, bounds);
-            if (clip.intersects(bounds))
+            if (intersects(clip, cb, i))
                 getView(i).paint(g, allocation);
         }
     }
 
+    /**
+     * Decides whether the view and its children are painted at all.
+     * 
+     * @return true when the view should be painted
+     */
+    protected boolean isPainted()
+    {
+        return true;
+    }
+
+    /**
+     * Paints the content of this view that is drawn before its children, such
+     * as the background.
+     * 
+     * @param g
+     *            the graphics context
+     */
+    protected void paintBackground(Graphics2D g)
+    {
+    }
+
+    /**
+     * Paints the content of this view that is drawn after its children.
+     * 
+     * @param g
+     *            the graphics context
+     */
+    protected void paintForeground(Graphics2D g)
+    {
+    }
+
+    /**
+     * Obtains the absolute bounds the allocation of the children is limited to.
+     * 
+     * @return the bounds or null when the allocation of the children is not
+     *         limited
+     */
+    protected Rectangle getOverflowBounds()
+    {
+        return null;
+    }
+
     @Override
     public Shape getChildAllocation(int index, Shape a)
     {
         if (a != null)
         {
-            Box tmpBox = getBox(getView(index));
-
             Rectangle alloc = (a instanceof Rectangle) ? (Rectangle) a : a.getBounds();
-            alloc.setBounds(getCompleteBoxAllocation(tmpBox));
+            childAllocation(index, alloc);
             return alloc;
         }
         return null;
@@ -436,7 +610,49 @@ public class ElementBoxView extends CompositeView implements CSSBoxView
     @Override
     protected void childAllocation(int index, Rectangle alloc)
     {
-        alloc.setBounds(getCompleteBoxAllocation(getBox(getView(index))));
+        final int[] cb = getChildBounds();
+        alloc.setBounds(cb[4 * index], cb[4 * index + 1], cb[4 * index + 2], cb[4 * index + 3]);
+    }
+
+    /**
+     * Obtains the complete allocations of all the child views. They only change
+     * with the layout, so they are computed once after the layout has been
+     * changed or the document has been rebound.
+     * 
+     * @return the x, y, width and height of the individual children
+     */
+    int[] getChildBounds()
+    {
+        if (childBounds == null)
+        {
+            final int count = getViewCount();
+            final int[] cb = new int[4 * count];
+            for (int i = 0; i < count; i++)
+            {
+                Rectangle r = getCompleteBoxAllocation(getBox(getView(i)));
+                cb[4 * i] = r.x;
+                cb[4 * i + 1] = r.y;
+                cb[4 * i + 2] = r.width;
+                cb[4 * i + 3] = r.height;
+            }
+            childBounds = cb;
+        }
+        return childBounds;
+    }
+
+    /**
+     * Checks whether a rectangle intersects the allocation of a child, the same
+     * way as {@link Rectangle#intersects(Rectangle)} does.
+     */
+    private static boolean intersects(Rectangle r, int[] cb, int index)
+    {
+        int x = cb[4 * index];
+        int y = cb[4 * index + 1];
+        int w = cb[4 * index + 2];
+        int h = cb[4 * index + 3];
+        if (r.width <= 0 || r.height <= 0 || w <= 0 || h <= 0)
+            return false;
+        return r.x < x + w && r.y < y + h && x < r.x + r.width && y < r.y + r.height;
     }
 
     /**
@@ -578,88 +794,68 @@ public class ElementBoxView extends CompositeView implements CSSBoxView
     protected View getViewAtPoint(int x, int y, Rectangle alloc)
     {
         View retv = null;
+        View retleaf = null;
         int retorder = -1;
         
-        final Vector<View> leaves = new Vector<>();
-        findLeaves(this, leaves);
-        
-        for (View leaf : leaves)
-        {
-            View v = leaf;
-            if (v instanceof CSSBoxView)
+        final HitIndex index = getHitIndex();
+        final BitSet leaves = index.findLeaves(x, y);
+        for (int i = leaves.nextSetBit(0); i >= 0; i = leaves.nextSetBit(i + 1))
+        {
+            View v = index.getLeaf(i);
+            while (v.getParent() != null && v.getParent() != this)
+                v = v.getParent();
+            if (v.getParent() != this || !(v instanceof CSSBoxView))
+                continue; //not our descendant
+
+            int o = ((CSSBoxView) v).getDrawingOrder();
+            if (retv == null || o >= retorder) //next box is drawn after the current one
             {
-                Box b = getBox(v);
-                if (locateBox(b, x, y) != null)
-                {
-                    while (v.getParent() != null && v.getParent() != this)
-                        v = v.getParent();
-                    
-                    int o = ((CSSBoxView) v).getDrawingOrder();
-                    if (retv == null || o >= retorder) //next box is drawn after the current one
-                    {
-                        retv = v;
-                        retorder = order;
-                        alloc.setBounds(getCompleteBoxAllocation(b));
-                    }
-                }
+                retv = v;
+                retleaf = index.getLeaf(i);
+                retorder = o;
             }
-            
         }
+        if (retleaf != null)
+            alloc.setBounds(getCompleteBoxAllocation(getBox(retleaf)));
         return retv;
     }
 
-    private void findLeaves(View root, Vector<View> leaves)
+    /**
+     * Obtains the index for locating the views. The index is shared by the
+     * whole view tree, it is built on the first use after a layout change.
+     * 
+     * @return the index
+     */
+    private HitIndex getHitIndex()
     {
-        if (root instanceof ElementBoxView)
-        {
-            ElementBoxView ev = (ElementBoxView) root;
-            if (ev.getViewCount() == 0)
-                leaves.add(ev);
-            else
-            {
-                for (int i = 0; i < ev.getViewCount(); i++)
-                    findLeaves(ev.getView(i), leaves);
-            }
-        }
-        else
-            leaves.add(root);
+        ElementBoxView root = this;
+        while (root.getParent() instanceof ElementBoxView)
+            root = (ElementBoxView) root.getParent();
+        if (root.hitIndex == null)
+            root.hitIndex = new HitIndex(root);
+        return root.hitIndex;
     }
-    
+
     /**
-     * Locates a box from its position
+     * Obtains the display list used for painting the view tree. The list is
+     * built on the first use after a layout change.
+     * 
+     * @return the display list
      */
-    private Box locateBox(Box root, int x, int y)
+    private DisplayList getDisplayList()
     {
-        if (root.isVisible())
-        {
-            Box found = null;
-            Rectangle bounds = root.getAbsoluteContentBounds().intersection(root.getClipBlock().getClippedContentBounds());
-            if (bounds.contains(x, y))
-                found = root;
-            
-            //find if there is something smallest that fits among the child boxes
-            if (root instanceof ElementBox)
-            {
-                ElementBox eb = (ElementBox) root;
-                for (int i = eb.getStartChild(); i < eb.getEndChild(); i++)
-                {
-                    Box inside = locateBox(((ElementBox) root).getSubBox(i), x, y);
-                    if (inside != null)
-                    {
-                        if (found == null)
-                            found = inside;
-                        else
-                        {
-                            if (inside.getAbsoluteBounds().width * inside.getAbsoluteBounds().height < found.getAbsoluteBounds().width * found.getAbsoluteBounds().height)
-                                found = inside;
-                        }
-                    }
-                }
-            }
-            return found;
-        }
-        else
-            return null;
+        if (displayList == null)
+            displayList = new DisplayList(this);
+        return displayList;
+    }
+
+    private void invalidateRootCaches()
+    {
+        ElementBoxView root = this;
+        while (root.getParent() instanceof ElementBoxView)
+            root = (ElementBoxView) root.getParent();
+        root.hitIndex = null;
+        root.displayList = null;
     }
     
     @Override
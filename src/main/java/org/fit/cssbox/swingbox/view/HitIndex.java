@@ -0,0 +1,302 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.view;
+
+import org.fit.cssbox.layout.Box;
+import org.fit.cssbox.layout.ElementBox;
+
+import javax.swing.text.View;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spatial index used for locating the leaf views at a point. The absolute
+ * (clipped) content bounds of all the visible boxes are stored in a uniform
+ * grid. Each box refers to the leaf views whose box subtree contains it, so a
+ * leaf view is hit whenever any visible box of its subtree contains the point.
+ * The index is built for the box tree of the root view and it must be dropped
+ * whenever the layout changes.
+ */
+final class HitIndex
+{
+    /** The size of the grid cells in pixels */
+    private static final int CELL_SIZE = 128;
+
+    /** The leaf views in the document order */
+    private final List<View> leaves;
+    /** The bounds of the entries (x, y, width, height) */
+    private int[] bounds;
+    /** The leaf views owning the individual entries */
+    private Owners[] owners;
+    private int count;
+
+    private int originX;
+    private int originY;
+    private int columns;
+    private int rows;
+    /** The first entry of each cell in {@link #cellEntries}, one more for the end */
+    private int[] cellStart;
+    private int[] cellEntries;
+
+    /**
+     * Creates the index for the given root view.
+     *
+     * @param root
+     *            the root view of the box tree
+     */
+    HitIndex(ElementBoxView root)
+    {
+        leaves = new ArrayList<>();
+        bounds = new int[256];
+        owners = new Owners[64];
+        findLeaves(root);
+
+        // boxes -> the indices of the leaves that represent them
+        Map<Box, int[]> leafBoxes = new IdentityHashMap<>();
+        for (int i = 0; i < leaves.size(); i++)
+        {
+            Box b = ElementBoxView.getBox(leaves.get(i));
+            int[] cur = leafBoxes.get(b);
+            if (cur == null)
+                cur = new int[] { i };
+            else
+            {
+                int[] nw = new int[cur.length + 1];
+                System.arraycopy(cur, 0, nw, 0, cur.length);
+                nw[cur.length] = i;
+                cur = nw;
+            }
+            leafBoxes.put(b, cur);
+        }
+
+        addBoxes(ElementBoxView.getBox((View) root), null, leafBoxes);
+        // the leaves not reachable from the root (should not happen normally)
+        while (!leafBoxes.isEmpty())
+        {
+            Box b = leafBoxes.keySet().iterator().next();
+            addBoxes(b, null, leafBoxes);
+            leafBoxes.remove(b);
+        }
+        buildGrid();
+    }
+
+    /**
+     * Gets the leaf view with the given index.
+     *
+     * @param index
+     *            the leaf index
+     * @return the view
+     */
+    View getLeaf(int index)
+    {
+        return leaves.get(index);
+    }
+
+    /**
+     * Finds the leaf views that contain the given point.
+     *
+     * @param x
+     *            the X coordinate
+     * @param y
+     *            the Y coordinate
+     * @return the indices of the leaves in the document order
+     */
+    BitSet findLeaves(int x, int y)
+    {
+        BitSet ret = new BitSet();
+        if (x < originX || y < originY)
+            return ret;
+        int col = (x - originX) / CELL_SIZE;
+        int row = (y - originY) / CELL_SIZE;
+        if (col >= columns || row >= rows)
+            return ret;
+
+        int cell = row * columns + col;
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++)
+        {
+            int e = cellEntries[i];
+            int bx = bounds[4 * e];
+            int by = bounds[4 * e + 1];
+            if (x >= bx && y >= by && x < bx + bounds[4 * e + 2] && y < by + bounds[4 * e + 3])
+            {
+                for (Owners o = owners[e]; o != null; o = o.parent)
+                {
+                    for (int leaf : o.leaves)
+                        ret.set(leaf);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private void findLeaves(View root)
+    {
+        if (root instanceof ElementBoxView && root.getViewCount() > 0)
+        {
+            for (int i = 0; i < root.getViewCount(); i++)
+                findLeaves(root.getView(i));
+        }
+        else if (root instanceof CSSBoxView)
+            leaves.add(root);
+    }
+
+    /**
+     * Adds a box subtree to the index.
+     *
+     * @param b
+     *            the subtree root
+     * @param parent
+     *            the owners of the parent box
+     * @param leafBoxes
+     *            the leaf boxes not processed yet
+     */
+    private void addBoxes(Box b, Owners parent, Map<Box, int[]> leafBoxes)
+    {
+        int[] own = leafBoxes.remove(b);
+        if (b.isVisible())
+        {
+            Owners cur = (own == null) ? parent : new Owners(own, parent);
+            if (cur != null)
+            {
+                Rectangle r = b.getAbsoluteContentBounds().intersection(b.getClipBlock().getClippedContentBounds());
+                if (!r.isEmpty())
+                    addEntry(r, cur);
+            }
+            if (b instanceof ElementBox)
+            {
+                ElementBox eb = (ElementBox) b;
+                for (int i = eb.getStartChild(); i < eb.getEndChild(); i++)
+                    addBoxes(eb.getSubBox(i), cur, leafBoxes);
+            }
+        }
+        else if (b instanceof ElementBox)
+        {
+            // an invisible box hides its subtree from all the leaves above
+            ElementBox eb = (ElementBox) b;
+            for (int i = eb.getStartChild(); i < eb.getEndChild(); i++)
+                addBoxes(eb.getSubBox(i), null, leafBoxes);
+        }
+    }
+
+    private void addEntry(Rectangle r, Owners o)
+    {
+        if (count == owners.length)
+        {
+            Owners[] nw = new Owners[count * 2];
+            System.arraycopy(owners, 0, nw, 0, count);
+            owners = nw;
+            int[] nb = new int[count * 8];
+            System.arraycopy(bounds, 0, nb, 0, count * 4);
+            bounds = nb;
+        }
+        bounds[4 * count] = r.x;
+        bounds[4 * count + 1] = r.y;
+        bounds[4 * count + 2] = r.width;
+        bounds[4 * count + 3] = r.height;
+        owners[count] = o;
+        count++;
+    }
+
+    private void buildGrid()
+    {
+        int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE;
+        int x2 = Integer.MIN_VALUE, y2 = Integer.MIN_VALUE;
+        for (int e = 0; e < count; e++)
+        {
+            x1 = Math.min(x1, bounds[4 * e]);
+            y1 = Math.min(y1, bounds[4 * e + 1]);
+            x2 = Math.max(x2, bounds[4 * e] + bounds[4 * e + 2]);
+            y2 = Math.max(y2, bounds[4 * e + 1] + bounds[4 * e + 3]);
+        }
+        if (count == 0)
+        {
+            columns = rows = 0;
+            cellStart = new int[1];
+            cellEntries = new int[0];
+            return;
+        }
+        originX = x1;
+        originY = y1;
+        columns = (x2 - x1 + CELL_SIZE - 1) / CELL_SIZE;
+        rows = (y2 - y1 + CELL_SIZE - 1) / CELL_SIZE;
+
+        // count the entries per cell first, then fill them
+        cellStart = new int[columns * rows + 1];
+        for (int e = 0; e < count; e++)
+        {
+            for (int row = firstRow(e); row <= lastRow(e); row++)
+                for (int col = firstColumn(e); col <= lastColumn(e); col++)
+                    cellStart[row * columns + col + 1]++;
+        }
+        for (int i = 1; i < cellStart.length; i++)
+            cellStart[i] += cellStart[i - 1];
+        cellEntries = new int[cellStart[cellStart.length - 1]];
+        int[] fill = new int[columns * rows];
+        for (int e = 0; e < count; e++)
+        {
+            for (int row = firstRow(e); row <= lastRow(e); row++)
+                for (int col = firstColumn(e); col <= lastColumn(e); col++)
+                {
+                    int cell = row * columns + col;
+                    cellEntries[cellStart[cell] + fill[cell]++] = e;
+                }
+        }
+    }
+
+    private int firstColumn(int e)
+    {
+        return (bounds[4 * e] - originX) / CELL_SIZE;
+    }
+
+    private int lastColumn(int e)
+    {
+        return (bounds[4 * e] + bounds[4 * e + 2] - 1 - originX) / CELL_SIZE;
+    }
+
+    private int firstRow(int e)
+    {
+        return (bounds[4 * e + 1] - originY) / CELL_SIZE;
+    }
+
+    private int lastRow(int e)
+    {
+        return (bounds[4 * e + 1] + bounds[4 * e + 3] - 1 - originY) / CELL_SIZE;
+    }
+
+    /**
+     * The leaf views whose box subtree contains a box. The chain goes up to
+     * the leaves represented by the ancestor boxes.
+     */
+    private static final class Owners
+    {
+        final int[] leaves;
+        final Owners parent;
+
+        Owners(int[] leaves, Owners parent)
+        {
+            this.leaves = leaves;
+            this.parent = parent;
+        }
+    }
+
+}
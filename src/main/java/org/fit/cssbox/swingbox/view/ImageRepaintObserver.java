@@ -0,0 +1,94 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.view;
+
+import org.fit.cssbox.layout.ContentImage;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.ImageObserver;
+
+/**
+ * Observes the image of a box while it is being loaded or animated. The
+ * updates are turned into repaints of the box region only, merged by the
+ * {@link RepaintScheduler}. When the box is not in the visible part of the
+ * container, the observer stops receiving the updates and so the animation
+ * pauses; it resumes when the box is painted again, as the image is drawn
+ * with this observer.
+ */
+final class ImageRepaintObserver implements ImageObserver
+{
+    private final ContentImage content;
+    private final Component container;
+
+    private ImageRepaintObserver(ContentImage content, Component container)
+    {
+        this.content = content;
+        this.container = container;
+    }
+
+    /**
+     * Makes an image content report its updates to a container.
+     *
+     * @param content
+     *            the image content
+     * @param container
+     *            the container that shows the content
+     */
+    static void observe(ContentImage content, Component container)
+    {
+        if (container == null)
+            return;
+        if (content.getImageObserver() instanceof ImageRepaintObserver
+                && ((ImageRepaintObserver) content.getImageObserver()).container == container)
+            return;
+        content.setImageObserver(new ImageRepaintObserver(content, container));
+    }
+
+    @Override
+    public boolean imageUpdate(Image img, int flags, int x, int y, int width, int height)
+    {
+        if (img != content.getImage())
+            return false;
+        final Rectangle bounds = content.getOwner().getAbsoluteBounds();
+        if ((flags & (ERROR | ABORT)) != 0)
+        {
+            content.abort();
+            RepaintScheduler.repaint(container, bounds);
+            return false;
+        }
+        if ((flags & (SOMEBITS | FRAMEBITS | ALLBITS)) != 0)
+        {
+            if (!isShowing(bounds))
+                return false;
+            RepaintScheduler.repaint(container, bounds);
+        }
+        return (flags & ALLBITS) == 0;
+    }
+
+    private boolean isShowing(Rectangle bounds)
+    {
+        if (!container.isShowing())
+            return false;
+        if (container instanceof JComponent)
+            return ((JComponent) container).getVisibleRect().intersects(bounds);
+        return true;
+    }
+
+}
@@ -18,6 +18,8 @@
 
 package org.fit.cssbox.swingbox.view;
 
+import org.fit.cssbox.layout.ElementBox;
+
 import javax.swing.text.AttributeSet;
 import javax.swing.text.Element;
 import javax.swing.text.View;
@@ -49,26 +51,32 @@ public class InlineBoxView extends ElementBoxView
     }
 
     @Override
-    public void paint(Graphics graphics, Shape allocation)
+    public void setParent(View parent)
     {
-        if (box.isDisplayed())
-        {
-            Graphics2D g = (Graphics2D) graphics;
-            // super.paint(g, allocation);
+        super.setParent(parent);
+        if (parent != null)
+            watchBackgroundImages(this, box);
+    }
 
-            box.getVisualContext().updateGraphics(g);
-            box.drawBackground(g);
-            int n = getViewCount();
-            // Rectangle alloc = allocation instanceof Rectangle ? (Rectangle)
-            // allocation : allocation.getBounds();
+    @Override
+    protected void updateBox(ElementBox newBox)
+    {
+        super.updateBox(newBox);
+        if (getContainer() != null)
+            watchBackgroundImages(this, box);
+    }
 
-            for (int i = 0; i < n; i++)
-            {
-                View v = getView(i);
-                v.paint(g, allocation);
-            }
+    @Override
+    protected boolean isPainted()
+    {
+        return box.isDisplayed();
+    }
 
-        }
+    @Override
+    protected void paintBackground(Graphics2D g)
+    {
+        box.getVisualContext().updateGraphics(g);
+        BackgroundPainter.paint(g, box);
     }
 
     @Override
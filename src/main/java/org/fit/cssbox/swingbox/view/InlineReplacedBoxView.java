@@ -19,9 +19,11 @@
 
 package org.fit.cssbox.swingbox.view;
 
+import org.fit.cssbox.layout.ElementBox;
 import org.fit.cssbox.layout.InlineReplacedBox;
 import org.fit.cssbox.layout.ReplacedContent;
 import org.fit.cssbox.layout.ReplacedImage;
+import org.fit.cssbox.swingbox.util.AsyncImageCache;
 import org.fit.cssbox.swingbox.util.Constants;
 
 import javax.swing.text.*;
@@ -41,6 +43,8 @@ public class InlineReplacedBoxView extends InlineBoxView
     private Container container;
     private ReplacedContent content;
     private ReplacedImage repImage;
+    /** the image scaled to the box size */
+    private final ReplacedImageRaster raster = new ReplacedImageRaster();
     private String alt = "";
     private String title = "";
 
@@ -61,6 +65,26 @@ public class InlineReplacedBoxView extends InlineBoxView
         loadElementAttributes();
     }
 
+    @Override
+    protected void updateBox(ElementBox newBox)
+    {
+        super.updateBox(newBox);
+        content = ((InlineReplacedBox) box).getContentObj();
+        if (content instanceof ReplacedImage)
+        {
+            repImage = (ReplacedImage) content;
+            if (container != null)
+            {
+                ImageRepaintObserver.observe(repImage, container);
+                watchImage();
+            }
+        }
+        else
+        {
+            repImage = null;
+        }
+    }
+
     private void loadElementAttributes()
     {
         alt = box.getElement().getAttribute("alt");
@@ -78,11 +102,12 @@ public class InlineReplacedBoxView extends InlineBoxView
         {
             paintHighlights(g, alloc);
             box.getVisualContext().updateGraphics(g);
-            box.drawBackground(g);
+            BackgroundPainter.paint(g, box);
 
             if (content != null)
             {
-                content.draw(g, box.getContentWidth(), box.getContentHeight());
+                if (repImage == null || !raster.draw(g, repImage, box.getAbsoluteContentBounds()))
+                    content.draw(g, box.getContentWidth(), box.getContentHeight());
 
                 if (repImage != null && repImage.getImage() == null)
                 {
@@ -151,6 +176,21 @@ public class InlineReplacedBoxView extends InlineBoxView
         return box.isDisplayed() && box.isVisible();
     }
 
+    /**
+     * Updates the view when the image that is being loaded arrives.
+     */
+    private void watchImage()
+    {
+        final ReplacedImage img = repImage;
+        if (img != null)
+        {
+            AsyncImageCache.whenLoaded(img, () -> {
+                if (img == repImage && container != null)
+                    replacedImageLoaded(img);
+            });
+        }
+    }
+
     @Override
     public void setParent(View parent)
     {
@@ -158,12 +198,14 @@ public class InlineReplacedBoxView extends InlineBoxView
         if (parent != null)
         {
             container = getContainer();
-            if (repImage != null) repImage.setContainer(container);// getContainer());
+            if (repImage != null) ImageRepaintObserver.observe(repImage, container);
+            watchImage();
         }
         else
         {
             repImage = null;
             content = null;
+            raster.invalidate();
             container = null;
         }
     }
@@ -18,9 +18,13 @@
 
 package org.fit.cssbox.swingbox.view;
 
+import org.fit.cssbox.layout.ElementBox;
 import org.fit.cssbox.layout.ListItemBox;
+import org.fit.cssbox.layout.ReplacedImage;
+import org.fit.cssbox.swingbox.util.AsyncImageCache;
 
 import javax.swing.text.Element;
+import javax.swing.text.View;
 import java.awt.*;
 
 /**
@@ -37,11 +41,47 @@ public class ListItemBoxView extends BlockBoxView
     }
 
     @Override
-    public void paint(Graphics g, Shape a)
+    protected void paintForeground(Graphics2D g)
     {
-        super.paint(g, a);
         if (isVisible() && box instanceof ListItemBox)
-            ((ListItemBox) box).drawMarker((Graphics2D) g);
+            ((ListItemBox) box).drawMarker(g);
+    }
+
+    @Override
+    public void setParent(View parent)
+    {
+        super.setParent(parent);
+        if (parent != null)
+            watchMarkerImage();
+    }
+
+    @Override
+    protected void updateBox(ElementBox newBox)
+    {
+        super.updateBox(newBox);
+        if (getContainer() != null)
+            watchMarkerImage();
+    }
+
+    /**
+     * Repaints the marker when the marker image that is being loaded arrives.
+     * The marker is drawn to the left of the box.
+     */
+    private void watchMarkerImage()
+    {
+        if (!(box instanceof ListItemBox))
+            return;
+        final ListItemBox item = (ListItemBox) box;
+        final ReplacedImage img = item.getMarkerImage();
+        if (img != null)
+        {
+            AsyncImageCache.whenLoaded(img, () -> {
+                img.reset();
+                Rectangle r = item.getAbsoluteBounds();
+                int h = img.getIntrinsicHeight();
+                repaintBox(this, new Rectangle(0, r.y - h, r.x + r.width, r.height + h));
+            });
+        }
     }
 
     
@@ -0,0 +1,85 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.view;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the repaint requests coming from the image loading and animation
+ * threads and passes them to the components once per frame. The regions
+ * requested for the same component during a frame are merged into a single
+ * repaint.
+ */
+final class RepaintScheduler
+{
+    /** The frame duration in milliseconds */
+    private static final int FRAME_DELAY = 16;
+
+    private static final Map<Component, Rectangle> dirty = new HashMap<>();
+    private static Timer timer;
+
+    private RepaintScheduler()
+    {
+    }
+
+    /**
+     * Requests a repaint of a component region in the next frame. May be
+     * called from any thread.
+     *
+     * @param c
+     *            the component
+     * @param r
+     *            the region in the component coordinates
+     */
+    static synchronized void repaint(Component c, Rectangle r)
+    {
+        if (r.isEmpty())
+            return;
+        Rectangle current = dirty.get(c);
+        if (current != null)
+            current.add(r);
+        else
+            dirty.put(c, new Rectangle(r));
+
+        if (timer == null)
+        {
+            timer = new Timer(FRAME_DELAY, e -> flush());
+            timer.setRepeats(false);
+        }
+        if (!timer.isRunning())
+            timer.start();
+    }
+
+    private static void flush()
+    {
+        final Map<Component, Rectangle> regions;
+        synchronized (RepaintScheduler.class)
+        {
+            if (dirty.isEmpty())
+                return;
+            regions = new HashMap<>(dirty);
+            dirty.clear();
+        }
+        regions.forEach((c, r) -> c.repaint(r.x, r.y, r.width, r.height));
+    }
+
+}
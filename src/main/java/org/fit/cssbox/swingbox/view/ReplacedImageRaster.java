@@ -0,0 +1,169 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.fit.cssbox.swingbox.view;
+
+import org.fit.cssbox.layout.ReplacedImage;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.MultiResolutionImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The image of a replaced box scaled to the box size at the device
+ * resolution. The image is scaled once and the subsequent repaints only copy
+ * the pixels. The raster is created again when the image, the box size or
+ * the scale of the transformation changes. The rasters of all the boxes share
+ * a size limit; the least recently drawn rasters are released when it is
+ * exceeded and created again when needed.
+ */
+final class ReplacedImageRaster
+{
+    /** The largest raster kept, in pixels */
+    private static final long MAX_PIXELS = 4L * 1024 * 1024;
+    /** The total size of the kept rasters, in pixels */
+    private static final long MAX_CACHE_PIXELS = 16L * 1024 * 1024;
+    /** The transformations that keep the axes (translation and scale) */
+    private static final int AXIS_ALIGNED = AffineTransform.TYPE_TRANSLATION
+            | AffineTransform.TYPE_UNIFORM_SCALE | AffineTransform.TYPE_GENERAL_SCALE;
+
+    /** The rasters kept, in the order of their use */
+    private static final Map<ReplacedImageRaster, Boolean> kept = new LinkedHashMap<>(16, 0.75f, true);
+    private static long keptPixels;
+
+    private Image source;
+    private Object hints;
+    private BufferedImage raster;
+
+    /**
+     * Draws the image of a replaced content using the raster.
+     *
+     * @param g
+     *            the graphics
+     * @param content
+     *            the image content
+     * @param bounds
+     *            the content bounds of the box
+     * @return true when the image has been drawn, false when it cannot be
+     *         drawn from a raster (e.g. it is not loaded, it is not scaled or
+     *         the transformation rotates or flips) and it should be drawn
+     *         directly
+     */
+    boolean draw(Graphics2D g, ReplacedImage content, Rectangle bounds)
+    {
+        final Image img = content.getImage();
+        final AffineTransform tx = g.getTransform();
+        if (!(img instanceof BufferedImage || img instanceof MultiResolutionImage)
+                || (tx.getType() & ~AXIS_ALIGNED) != 0 || tx.getScaleX() <= 0 || tx.getScaleY() <= 0)
+            return false;
+
+        // the device size of the box, the image is not scaled when it matches
+        final int w = (int) Math.round(bounds.width * tx.getScaleX());
+        final int h = (int) Math.round(bounds.height * tx.getScaleY());
+        if (w <= 0 || h <= 0 || (long) w * h > MAX_PIXELS
+                || (w == img.getWidth(null) && h == img.getHeight(null)))
+        {
+            invalidate();
+            return false;
+        }
+
+        final Object interpolation = g.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        BufferedImage current = raster;
+        if (current == null || source != img || hints != interpolation
+                || current.getWidth() != w || current.getHeight() != h)
+        {
+            invalidate();
+            current = g.getDeviceConfiguration().createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+            Graphics2D rg = current.createGraphics();
+            rg.setRenderingHints(g.getRenderingHints());
+            rg.drawImage(img, 0, 0, w, h, null);
+            rg.dispose();
+            keep(current, img, interpolation);
+        }
+        else
+        {
+            synchronized (ReplacedImageRaster.class)
+            {
+                kept.get(this); //mark as recently used
+            }
+        }
+
+        Point2D origin = tx.transform(new Point2D.Double(bounds.x, bounds.y), null);
+        g.setTransform(AffineTransform.getTranslateInstance(Math.round(origin.getX()), Math.round(origin.getY())));
+        g.drawImage(current, 0, 0, null);
+        g.setTransform(tx);
+        return true;
+    }
+
+    /**
+     * Releases the raster.
+     */
+    void invalidate()
+    {
+        synchronized (ReplacedImageRaster.class)
+        {
+            if (kept.remove(this) != null)
+                keptPixels -= pixels(raster);
+            release();
+        }
+    }
+
+    /**
+     * Keeps a new raster and releases the least recently used rasters of the
+     * other boxes when the size limit is exceeded.
+     */
+    private void keep(BufferedImage newRaster, Image img, Object interpolation)
+    {
+        synchronized (ReplacedImageRaster.class)
+        {
+            raster = newRaster;
+            source = img;
+            hints = interpolation;
+            kept.put(this, Boolean.TRUE);
+            keptPixels += pixels(newRaster);
+            Iterator<ReplacedImageRaster> it = kept.keySet().iterator();
+            while (keptPixels > MAX_CACHE_PIXELS && it.hasNext())
+            {
+                ReplacedImageRaster oldest = it.next();
+                if (oldest == this)
+                    break;
+                it.remove();
+                keptPixels -= pixels(oldest.raster);
+                oldest.release();
+            }
+        }
+    }
+
+    private void release()
+    {
+        raster = null;
+        source = null;
+        hints = null;
+    }
+
+    private static long pixels(BufferedImage img)
+    {
+        return img == null ? 0 : (long) img.getWidth() * img.getHeight();
+    }
+
+}
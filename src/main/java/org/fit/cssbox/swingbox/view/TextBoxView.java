@@ -24,16 +24,20 @@ import org.fit.cssbox.layout.BlockBox;
 import org.fit.cssbox.layout.TextBox;
 import org.fit.cssbox.swingbox.util.Anchor;
 import org.fit.cssbox.swingbox.util.Constants;
+import org.fit.cssbox.swingbox.util.TextLayoutCache;
 
 import javax.swing.event.DocumentEvent;
 import javax.swing.text.*;
 import javax.swing.text.Position.Bias;
 import java.awt.*;
 import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.LineMetrics;
 import java.awt.font.TextHitInfo;
 import java.awt.font.TextLayout;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
+import java.text.Bidi;
 import java.util.List;
 import java.util.Map;
 
@@ -46,14 +50,22 @@ import java.util.Map;
 @SuppressWarnings("unused")
 public class TextBoxView extends View implements CSSBoxView
 {
-    private final TextBox box;
+    private TextBox box;
     private Font font;
     private Color foreground;
     private List<TextDecoration> textDecoration;
     private String fontVariant;
     private TextLayout layout;
+    /** the glyphs used instead of the layout for simple texts */
+    private GlyphVector glyphs;
+    private LineMetrics lineMetrics;
+    /** 1 when the text requires no complex layout, 0 when it does, -1 unknown */
+    private int simpleText = -1;
     private AffineTransform transform;
-    private final int order;
+    private FontRenderContext frc;
+    /** the text of the element, taken from the document on first use */
+    private String text;
+    private int order;
 
     /** the cache of attributes */
     private AttributeSet attributes;
@@ -61,6 +73,7 @@ public class TextBoxView extends View implements CSSBoxView
     private boolean refreshAttributes;
     private boolean refreshProperties;
     private boolean refreshTextLayout;
+    private boolean refreshGlyphs;
 
     private boolean underline;
     private boolean strike;
@@ -97,32 +110,6 @@ public class TextBoxView extends View implements CSSBoxView
         {
             throw new IllegalArgumentException("Box reference is not an instance of TextBox");
         }
-
-        if (box.getNode() != null && box.getNode().getParentNode() instanceof org.w3c.dom.Element)
-        {
-            org.w3c.dom.Element pelem = Anchor.findAnchorElement((org.w3c.dom.Element) box.getNode().getParentNode());
-            Map<String, String> elementAttributes = anchor.getProperties();
-
-            if (pelem != null)
-            {
-                anchor.setActive(true);
-                elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_HREF, pelem.getAttribute("href"));
-                elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_NAME, pelem.getAttribute("name"));
-                elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_TITLE, pelem.getAttribute("title"));
-                String target = pelem.getAttribute("target");
-                if ("".equals(target))
-                {
-                    target = "_self";
-                }
-                elementAttributes.put(Constants.ELEMENT_A_ATTRIBUTE_TARGET, target);
-            }
-            else
-            {
-                anchor.setActive(false);
-                elementAttributes.clear();
-            }
-        }
-
     }
 
     @Override
@@ -140,6 +127,7 @@ public class TextBoxView extends View implements CSSBoxView
         if (parent != null)
         {
             transform = new AffineTransform();
+            frc = null;
             setPropertiesFromAttributes(getElement().getAttributes());
             refreshAttributes = true;
             refreshProperties = false;
@@ -160,6 +148,7 @@ public class TextBoxView extends View implements CSSBoxView
         {
             anchor = null;
             transform = null;
+            frc = null;
             container = null;
         }
     }
@@ -177,12 +166,36 @@ public class TextBoxView extends View implements CSSBoxView
     public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f)
     {
         //assume that attributes have changed, reflect changes immediately
-        invalidateProperties();
-        syncProperties();
-        invalidateTextLayout();
+        AttributeSet tmpAttr = getElement().getAttributes();
+        Object obj = tmpAttr.getAttribute(Constants.ATTRIBUTE_BOX_REFERENCE);
+        if (obj instanceof TextBox)
+        {
+            // the document has been rebound to a new box tree
+            box = (TextBox) obj;
+            Integer i = (Integer) tmpAttr.getAttribute(Constants.ATTRIBUTE_DRAWING_ORDER);
+            order = (i == null) ? -1 : i;
+            anchor = (Anchor) tmpAttr.getAttribute(Constants.ATTRIBUTE_ANCHOR_REFERENCE);
+        }
+        setPropertiesFromAttributes(tmpAttr);
+        invalidateCache();
+        invalidateText();
         super.changedUpdate(e, a, f);
     }
 
+    @Override
+    public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f)
+    {
+        invalidateText();
+        super.insertUpdate(e, a, f);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f)
+    {
+        invalidateText();
+        super.removeUpdate(e, a, f);
+    }
+
     @Override
     public float getMaximumSpan(int axis)
     {
@@ -232,16 +245,27 @@ public class TextBoxView extends View implements CSSBoxView
     @Override
     public Shape modelToView(int pos, Shape a, Bias b)
     {
-        TextLayout layout = getTextLayout();
-
         // the start position this view is responsible for
         int offs = pos - getStartOffset();
         Rectangle alloc = new Rectangle(toRect(a));
-        TextHitInfo hit = ((b == Position.Bias.Forward) ? TextHitInfo.afterOffset(offs) : TextHitInfo.beforeOffset(offs));
-        float[] locs = layout.getCaretInfo(hit);
+        float caret;
+        GlyphVector gv = getGlyphVector();
+        if (gv != null)
+        {
+            // left-to-right text, one glyph per character
+            int i = Math.max(0, Math.min(offs, gv.getNumGlyphs()));
+            caret = (float) gv.getGlyphPosition(i).getX();
+        }
+        else
+        {
+            TextLayout layout = getTextLayout();
+            TextHitInfo hit = ((b == Position.Bias.Forward) ? TextHitInfo.afterOffset(offs) : TextHitInfo.beforeOffset(offs));
+            float[] locs = layout.getCaretInfo(hit);
+            caret = locs[0];
+        }
 
         // hint: nie je lepsie to prepisat na setBounds, ktory berie int ?
-        alloc.setRect(alloc.getX() + locs[0], alloc.getY(), 1D,
+        alloc.setRect(alloc.getX() + caret, alloc.getY(), 1D,
                 alloc.getHeight());
 
         return alloc;
@@ -251,6 +275,32 @@ public class TextBoxView extends View implements CSSBoxView
     public int viewToModel(float x, float y, Shape a, Bias[] biasReturn)
     {
         Rectangle alloc = toRect(a);
+        GlyphVector gv = getGlyphVector();
+        if (gv != null)
+        {
+            // the same as TextLayout.hitTestChar() for left-to-right text
+            float hx = x - (float) alloc.getX();
+            int n = gv.getNumGlyphs();
+            int pos = 0;
+            biasReturn[0] = Position.Bias.Forward;
+            for (int i = 0; i < n; i++)
+            {
+                float left = (float) gv.getGlyphPosition(i).getX();
+                float right = (float) gv.getGlyphPosition(i + 1).getX();
+                if (hx < right || i == n - 1)
+                {
+                    if (hx < (left + right) / 2)
+                        pos = i;
+                    else
+                    {
+                        pos = i + 1;
+                        biasReturn[0] = Position.Bias.Backward;
+                    }
+                    break;
+                }
+            }
+            return pos + getStartOffset();
+        }
         // Move the y co-ord of the hit onto the baseline. This is because
         // TextLayout supports
         // italic carets and we do not.
@@ -334,9 +384,13 @@ public class TextBoxView extends View implements CSSBoxView
     {
         Graphics2D g = (Graphics2D) gg;
         AffineTransform tmpTransform = g.getTransform();
+        // the translation (e.g. scrolling) does not influence the text shaping
+        tmpTransform.setTransform(tmpTransform.getScaleX(), tmpTransform.getShearY(),
+                tmpTransform.getShearX(), tmpTransform.getScaleY(), 0, 0);
         if (!tmpTransform.equals(transform))
         {
             transform = tmpTransform;
+            frc = null;
             invalidateTextLayout();
         }
 
@@ -386,7 +440,11 @@ public class TextBoxView extends View implements CSSBoxView
      */
     protected void renderContent(Graphics2D g, Shape a, Color fg, int p0, int p1)
     {
-        TextLayout layout = getTextLayout();
+        // simple texts are drawn using a glyph vector, the layout is used otherwise
+        final GlyphVector gv = getGlyphVector();
+        final TextLayout layout = (gv == null) ? getTextLayout() : null;
+        final float ascent = (gv == null) ? layout.getAscent() : lineMetrics.getAscent();
+        final float descent = (gv == null) ? layout.getDescent() : lineMetrics.getDescent();
         Rectangle absoluteBounds = box.getAbsoluteBounds();
         Rectangle absoluteContentBounds = box.getAbsoluteContentBounds();
 
@@ -423,7 +481,10 @@ public class TextBoxView extends View implements CSSBoxView
         }
 
         // render the text
-        layout.draw(g, x, y + layout.getAscent());
+        if (gv != null)
+            g.drawGlyphVector(gv, x, y + ascent);
+        else
+            layout.draw(g, x, y + ascent);
 
         //render the decoration
         if (underline || strike || overline)
@@ -447,7 +508,7 @@ public class TextBoxView extends View implements CSSBoxView
             }
             if (underline)
             {
-                int yy = y + absoluteContentBounds.height - (int) layout.getDescent();
+                int yy = y + absoluteContentBounds.height - (int) descent;
                 g.drawLine(absoluteContentBounds.x, yy, xx, yy);
             }
             if (strike)
@@ -500,7 +561,9 @@ public class TextBoxView extends View implements CSSBoxView
      */
     protected String getText()
     {
-        return getText(getStartOffset(), getEndOffset());
+        if (text == null)
+            text = getText(getStartOffset(), getEndOffset());
+        return text;
     }
 
     /**
@@ -592,6 +655,14 @@ public class TextBoxView extends View implements CSSBoxView
     private void invalidateTextLayout()
     {
         refreshTextLayout = true;
+        refreshGlyphs = true;
+        simpleText = -1;
+    }
+
+    private void invalidateText()
+    {
+        text = null;
+        invalidateTextLayout();
     }
 
     private void syncProperties()
@@ -713,7 +784,8 @@ public class TextBoxView extends View implements CSSBoxView
     }
 
     /**
-     * Gets the text layout.
+     * Gets the text layout. The layouts are shared with the other views using
+     * the {@link TextLayoutCache}.
      *
      * @return the text layout
      */
@@ -722,12 +794,55 @@ public class TextBoxView extends View implements CSSBoxView
         if (refreshTextLayout)
         {
             refreshTextLayout = false;
-            layout = new TextLayout(getText(), getFont(), new FontRenderContext(transform, true, false));
+            if (frc == null)
+                frc = new FontRenderContext(transform, true, false);
+            layout = TextLayoutCache.getInstance().getLayout(getText(), getFont(), frc);
         }
 
         return layout;
     }
 
+    /**
+     * Gets the glyph vector used for drawing a simple text, i.e. a left-to-right
+     * text that requires no complex layout and maps each character to a single
+     * glyph. Such texts are drawn using the glyph vector, which is much
+     * cheaper than a text layout.
+     *
+     * @return the glyph vector or {@code null} when the text is not simple and
+     *         the text layout must be used
+     */
+    protected GlyphVector getGlyphVector()
+    {
+        if (simpleText == -1)
+            simpleText = isSimpleText(getText(), getFont()) ? 1 : 0;
+        if (simpleText == 0)
+            return null;
+        if (refreshGlyphs)
+        {
+            refreshGlyphs = false;
+            if (frc == null)
+                frc = new FontRenderContext(transform, true, false);
+            String text = getText();
+            glyphs = TextLayoutCache.getInstance().getGlyphVector(text, getFont(), frc);
+            lineMetrics = getFont().getLineMetrics(text, frc);
+        }
+        return glyphs;
+    }
+
+    private static boolean isSimpleText(String text, Font font)
+    {
+        if (text.isEmpty() || font.hasLayoutAttributes())
+            return false;
+        char[] chars = text.toCharArray();
+        for (char ch : chars)
+        {
+            if (Character.isSurrogate(ch))
+                return false;
+        }
+        return !Font.textRequiresLayout(chars, 0, chars.length)
+                && !Bidi.requiresBidi(chars, 0, chars.length);
+    }
+
     /**
      * Gets the font.
      *
@@ -18,6 +18,7 @@
 
 package org.fit.cssbox.swingbox.view;
 
+import org.fit.cssbox.layout.ElementBox;
 import org.fit.cssbox.swingbox.SwingBoxDocument;
 import org.fit.cssbox.swingbox.SwingBoxEditorKit;
 
@@ -29,7 +30,6 @@ import javax.swing.text.View;
 import java.awt.*;
 import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
-import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 
@@ -45,6 +45,8 @@ public class ViewportView extends BlockBoxView implements ComponentListener
     private Reference<JViewport> cachedViewPort;
     private JEditorPane editor;
     private final Dimension tmpDimension;
+    /** a layout requested by the views is to be scheduled */
+    private boolean relayoutPending;
 
     /**
      * Instantiates a new viewport view.
@@ -62,15 +64,47 @@ public class ViewportView extends BlockBoxView implements ComponentListener
     protected void validateLayout( Dimension dim)
     {
         /*
-         * if a new layout is created, everything is built from scratch and
-         * valid.. if did not succeed, then world has not changed and mark it is
-         * valid
+         * the new layout (if any) is created in the background, until then the
+         * current one is valid
          */
         boolean result = checkSize(dim);
         if (!result) super.validateLayout(dim);
 
     }
 
+    @Override
+    protected void updateBox(ElementBox newBox)
+    {
+        super.updateBox(newBox);
+        if (getContainer() != null)
+            watchBackgroundImages(this, box.getViewport());
+        // the whole tree has been rebound, the hosting views have to know
+        preferenceChanged(null, true, true);
+    }
+
+    /**
+     * Schedules a new layout of the document using the current size. The
+     * requests made by several views at once (e.g. when a number of images
+     * arrives) result in a single layout.
+     */
+    @Override
+    protected void relayout()
+    {
+        if (relayoutPending)
+            return;
+        relayoutPending = true;
+        SwingUtilities.invokeLater(() -> {
+            relayoutPending = false;
+            Document doc = getDocument();
+            EditorKit kit = (editor == null) ? null : editor.getEditorKit();
+            if (box != null && doc instanceof SwingBoxDocument && kit instanceof SwingBoxEditorKit)
+            {
+                tmpDimension.setSize(box.getViewport().getVisibleRect().getSize());
+                ((SwingBoxEditorKit) kit).updateLater((SwingBoxDocument) doc, tmpDimension);
+            }
+        });
+    }
+
     @Override
     public void paint(Graphics graphics, Shape allocation)
     {
@@ -81,7 +115,7 @@ public class ViewportView extends BlockBoxView implements ComponentListener
             throw new RuntimeException("Unknown graphics enviroment, java.awt.Graphics2D required !");
         
         box.getVisualContext().updateGraphics(g);
-        box.drawBackground(g);
+        BackgroundPainter.paint(g, box);
         super.paint(graphics, allocation);
     }
 
@@ -164,6 +198,7 @@ public class ViewportView extends BlockBoxView implements ComponentListener
         else
         {
             hook();
+            watchBackgroundImages(this, box.getViewport());
         }
     }
 
@@ -198,36 +233,24 @@ public class ViewportView extends BlockBoxView implements ComponentListener
         
         int diffx = Math.abs(extentSize.width - box.getViewport().getBounds().width);
         int diffy = Math.abs(extentSize.height - box.getViewport().getBounds().height);
-        if (diffx > 20 || diffy > 20) //prevent loops caused by displaying scrollbars and too small changes.
-        {                             //TODO this is a provisional solution
-            Document doc = getDocument();
-            tmpDimension.setSize(extentSize);
-
-            if (doc instanceof SwingBoxDocument)
-            { 
-                return doLayout((SwingBoxDocument) doc, tmpDimension);
-            }
-        }
-
-        return false;
-    }
-
-    private boolean doLayout(SwingBoxDocument doc, Dimension dim)
-    {
-        try
+        Document doc = getDocument();
+        EditorKit kit = (editor == null) ? null : editor.getEditorKit();
+        if (doc instanceof SwingBoxDocument && kit instanceof SwingBoxEditorKit)
         {
-            EditorKit kit = editor.getEditorKit();
-
-            if (kit instanceof SwingBoxEditorKit)
+            if (diffx > 20 || diffy > 20) //prevent loops caused by displaying scrollbars and too small changes.
+            {                             //TODO this is a provisional solution
+                // the layout runs in the background, the views pick up the
+                // new boxes when the document is updated on the EDT
+                tmpDimension.setSize(extentSize);
+                ((SwingBoxEditorKit) kit).resizeLater((SwingBoxDocument) doc, tmpDimension);
+            }
+            else
             {
-                ((SwingBoxEditorKit) kit).update(doc, dim);
+                // back to (nearly) the current size, the pending resize is not
+                // needed; the layouts requested by the views are kept
+                tmpDimension.setSize(extentSize);
+                ((SwingBoxEditorKit) kit).cancelResize((SwingBoxDocument) doc, tmpDimension);
             }
-
-            preferenceChanged(null, true, true);
-            return true;
-        } 
-        catch (IOException ignored )
-        {
         }
 
         return false;
@@ -0,0 +1,253 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *  
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.fit.cssbox.swingbox;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.View;
+
+import org.fit.cssbox.swingbox.view.ViewportView;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a document rebound to a new layout after a resize paints the
+ * same as a document laid out for the new size from scratch, also when only
+ * a part of the page is painted.
+ */
+public class RebindPaintTest extends TestCase
+{
+    private static final int OLD_WIDTH = 900;
+    private static final int NEW_WIDTH = 500;
+    private static final int STRIP = 60;
+
+    private File page;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        // the text must not wrap differently at both widths, otherwise the
+        // document is not rebound but rebuilt
+        StringBuilder html = new StringBuilder("<html><head><style>"
+                + "body { margin: 0; font: 14px sans-serif }"
+                + ".f { float: left; width: 200px; height: 90px; margin: 5px;"
+                + " background: #9cf; border: 1px solid #036 }"
+                + "h2, p { clear: both }"
+                + "</style></head><body>");
+        for (int s = 0; s < 6; s++)
+        {
+            html.append("<div><h2>Group ").append(s).append("</h2>");
+            for (int i = 0; i < 12; i++)
+                html.append("<div class=\"f\">Float ").append(s).append('.').append(i).append("</div>");
+            html.append("<p>After ").append(s).append("</p></div>");
+        }
+        html.append("</body></html>");
+        page = File.createTempFile("rebind", ".html");
+        Files.write(page.toPath(), html.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        page.delete();
+    }
+
+    public void testStripsAfterRebind() throws Exception
+    {
+        final BrowserPane fresh = load(NEW_WIDTH);
+        final BufferedImage expected = paint(fresh, fresh.getHeight());
+
+        final BrowserPane pane = load(OLD_WIDTH);
+        final View[] before = new View[1];
+        final View[] after = new View[1];
+        final BufferedImage[] strips = new BufferedImage[1];
+        SwingUtilities.invokeAndWait(() -> {
+            try
+            {
+                // the views only get the update allocations once painted
+                paint(pane, pane.getHeight());
+                before[0] = viewportView(pane);
+                pane.setSize(NEW_WIDTH, pane.getHeight());
+                ((SwingBoxEditorKit) pane.getEditorKit()).update((SwingBoxDocument) pane.getDocument(),
+                        new Dimension(NEW_WIDTH, 700));
+                pane.setSize(NEW_WIDTH, pane.getPreferredSize().height);
+                after[0] = viewportView(pane);
+                strips[0] = paint(pane, STRIP);
+            } catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertSame("the document has not been rebound", before[0], after[0]);
+        assertEquals(expected.getHeight(), strips[0].getHeight());
+        assertSameRegion(expected, strips[0], new Rectangle(expected.getWidth(), expected.getHeight()));
+    }
+
+    public void testPartialRepaintAfterRebind() throws Exception
+    {
+        final BrowserPane fresh = load(NEW_WIDTH);
+        final BufferedImage expected = paint(fresh, fresh.getHeight());
+
+        final BrowserPane pane = load(OLD_WIDTH);
+        final BufferedImage[] img = new BufferedImage[1];
+        SwingUtilities.invokeAndWait(() -> {
+            try
+            {
+                paint(pane, pane.getHeight());
+                pane.setSize(NEW_WIDTH, pane.getHeight());
+                ((SwingBoxEditorKit) pane.getEditorKit()).update((SwingBoxDocument) pane.getDocument(),
+                        new Dimension(NEW_WIDTH, 700));
+                pane.setSize(NEW_WIDTH, pane.getPreferredSize().height);
+                img[0] = paint(pane, pane.getHeight());
+            } catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+
+        // repaint small regions that do not match the display list bands,
+        // below the end of the page before the resize
+        for (int y = expected.getHeight() * 2 / 3; y + 37 < expected.getHeight(); y += 111)
+        {
+            final Rectangle clip = new Rectangle(13, y, NEW_WIDTH - 40, 37);
+            SwingUtilities.invokeAndWait(() -> {
+                Graphics2D g = img[0].createGraphics();
+                g.setColor(Color.MAGENTA);
+                g.fill(clip);
+                g.setClip(clip);
+                pane.paint(g);
+                g.dispose();
+            });
+            assertSameRegion(expected, img[0], clip);
+        }
+    }
+
+    public void testRenderContentAfterRebind() throws Exception
+    {
+        final BrowserPane fresh = load(NEW_WIDTH);
+        final BrowserPane pane = load(OLD_WIDTH);
+        SwingUtilities.invokeAndWait(() -> {
+            try
+            {
+                paint(pane, pane.getHeight());
+                pane.setSize(NEW_WIDTH, pane.getHeight());
+                ((SwingBoxEditorKit) pane.getEditorKit()).update((SwingBoxDocument) pane.getDocument(),
+                        new Dimension(NEW_WIDTH, 700));
+                pane.setSize(NEW_WIDTH, pane.getPreferredSize().height);
+            } catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+
+        // all the panes share the view factory, each must render its own views
+        load(OLD_WIDTH);
+        final BufferedImage[] expected = new BufferedImage[1];
+        SwingUtilities.invokeAndWait(() -> expected[0] = paint(fresh, fresh.getHeight()));
+        final BufferedImage actual = render(pane, STRIP);
+        assertEquals(NEW_WIDTH, actual.getWidth());
+        assertEquals(fresh.getContentSize().height, actual.getHeight());
+        // the pane is taller by its insets
+        assertSameRegion(expected[0], actual, new Rectangle(actual.getWidth(), actual.getHeight()));
+    }
+
+    private static void assertSameRegion(BufferedImage expected, BufferedImage actual, Rectangle r)
+    {
+        for (int y = r.y; y < r.y + r.height; y++)
+        {
+            for (int x = r.x; x < r.x + r.width; x++)
+            {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y))
+                    fail("The pixel at " + x + "," + y + " differs");
+            }
+        }
+    }
+
+    private BrowserPane load(int width) throws Exception
+    {
+        final BrowserPane[] pane = new BrowserPane[1];
+        final CountDownLatch loaded = new CountDownLatch(1);
+        SwingUtilities.invokeAndWait(() -> {
+            pane[0] = new BrowserPane();
+            pane[0].setSize(width, 700);
+            pane[0].addPropertyChangeListener("page", e -> loaded.countDown());
+            try
+            {
+                pane[0].setPage(page.toURI().toURL());
+            } catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue("the page has not been loaded", loaded.await(30, TimeUnit.SECONDS));
+        SwingUtilities.invokeAndWait(() -> pane[0].setSize(width, pane[0].getPreferredSize().height));
+        return pane[0];
+    }
+
+    /**
+     * Paints the whole pane in horizontal strips.
+     */
+    private static BufferedImage paint(BrowserPane pane, int strip)
+    {
+        BufferedImage img = new BufferedImage(pane.getWidth(), pane.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < img.getHeight(); y += strip)
+        {
+            Graphics2D g = img.createGraphics();
+            g.setClip(0, y, img.getWidth(), Math.min(strip, img.getHeight() - y));
+            pane.paint(g);
+            g.dispose();
+        }
+        return img;
+    }
+
+    /**
+     * Renders the content of the pane through the strip consumer.
+     */
+    private static BufferedImage render(BrowserPane pane, int strip) throws Exception
+    {
+        final Dimension size = pane.getContentSize();
+        final BufferedImage img = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        assertTrue(pane.renderContent(strip, (s, y) -> {
+            Graphics2D g = img.createGraphics();
+            g.drawImage(s, 0, y, null);
+            g.dispose();
+        }));
+        return img;
+    }
+
+    private static View viewportView(BrowserPane pane)
+    {
+        View v = pane.getUI().getRootView(pane);
+        while (v.getViewCount() > 0 && !(v instanceof ViewportView))
+            v = v.getView(0);
+        return v;
+    }
+
+}
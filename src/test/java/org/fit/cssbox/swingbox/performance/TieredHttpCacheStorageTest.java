@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 White Magic Software, Ltd.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  o Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *  o Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.fit.cssbox.swingbox.performance;
+
+import junit.framework.TestCase;
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks the disk tier of {@link TieredHttpCacheStorage}: the recovery of the
+ * index after a restart, the eviction, the protection of the directory and
+ * the bodies streamed from the entry files.
+ */
+public class TieredHttpCacheStorageTest extends TestCase {
+  private static final long MEMORY_SIZE = 64 * 1024;
+  /** Larger than a memory tier object may be, so it is streamed */
+  private static final int STREAMED_SIZE = 64 * 1024;
+
+  private Path mDirectory;
+
+  @Override
+  protected void setUp() throws IOException {
+    mDirectory = Files.createTempDirectory( "swingbox-cache-test" )
+                      .resolve( "cache" );
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    final var root = mDirectory.getParent();
+    root.toFile().setWritable( true );
+
+    try( final Stream<Path> files = Files.walk( root ) ) {
+      files.sorted( Collections.reverseOrder() ).forEach( f -> f.toFile().delete() );
+    }
+  }
+
+  public void testEntriesSurviveRestart() throws IOException {
+    final var body = body( 1000, 1 );
+    final var storage = open( 1 << 20 );
+    storage.putEntry( "http://a/", entry( body ) );
+
+    final var restarted = open( 1 << 20 );
+    assertEquals( 1, restarted.getDiskEntryCount() );
+
+    final var entry = restarted.getEntry( "http://a/" );
+    assertNotNull( entry );
+    assertEquals( 1, restarted.getDiskHitCount() );
+    assertEquals( 200, entry.getStatusCode() );
+    assertEquals( "text/css", entry.getFirstHeader( "Content-Type" ).getValue() );
+    assertEquals( "GET", entry.getRequestMethod() );
+    assertTrue( Arrays.equals( body, read( entry ) ) );
+    assertNull( restarted.getEntry( "http://b/" ) );
+  }
+
+  public void testRecoveryRemovesUnfinishedAndBrokenFiles() throws IOException {
+    open( 1 << 20 ).putEntry( "http://a/", entry( body( 1000, 1 ) ) );
+    final var valid = entryFiles().get( 0 );
+
+    final var temp = mDirectory.resolve( "x.entry.1.tmp" );
+    Files.write( temp, new byte[ 100 ] );
+    final var truncated = mDirectory.resolve( "truncated.entry" );
+    Files.write( truncated, Arrays.copyOf( Files.readAllBytes( valid ), 20 ) );
+    final var garbage = mDirectory.resolve( "garbage.entry" );
+    Files.write( garbage, body( 300, 2 ) );
+
+    final var restarted = open( 1 << 20 );
+    assertEquals( 1, restarted.getDiskEntryCount() );
+    assertFalse( Files.exists( temp ) );
+    assertFalse( Files.exists( truncated ) );
+    assertFalse( Files.exists( garbage ) );
+    assertTrue( Files.exists( valid ) );
+  }
+
+  public void testLeastRecentlyUsedEntriesEvicted() throws IOException {
+    final var storage = open( 2500 );
+    storage.putEntry( "http://a/", entry( body( 1000, 1 ) ) );
+    storage.putEntry( "http://b/", entry( body( 1000, 2 ) ) );
+    // a is used more recently than b now
+    assertNotNull( storage.getEntry( "http://a/" ) );
+    storage.putEntry( "http://c/", entry( body( 1000, 3 ) ) );
+
+    assertEquals( 2, storage.getDiskEntryCount() );
+    assertTrue( storage.getDiskSize() <= 2500 );
+    assertEquals( 2, entryFiles().size() );
+
+    final var restarted = open( 2500 );
+    assertNotNull( restarted.getEntry( "http://a/" ) );
+    assertNull( restarted.getEntry( "http://b/" ) );
+    assertNotNull( restarted.getEntry( "http://c/" ) );
+  }
+
+  public void testRecoveredInOrderOfUse() throws IOException {
+    final var storage = open( 1 << 20 );
+    storage.putEntry( "http://a/", entry( body( STREAMED_SIZE, 1 ) ) );
+    storage.putEntry( "http://b/", entry( body( STREAMED_SIZE, 2 ) ) );
+    // the use is recorded in the modification time of the file
+    for( final var file : entryFiles() ) {
+      Files.setLastModifiedTime( file, FileTime.fromMillis( 1000 ) );
+    }
+    assertNotNull( storage.getEntry( "http://a/" ) );
+
+    final var restarted = open( 2 * STREAMED_SIZE + 1000 );
+    restarted.putEntry( "http://c/", entry( body( 1000, 3 ) ) );
+    assertEquals( 2, restarted.getDiskEntryCount() );
+    assertNotNull( restarted.getEntry( "http://a/" ) );
+    assertNull( restarted.getEntry( "http://b/" ) );
+  }
+
+  public void testDirectoryOwnerOnly() throws IOException {
+    final var storage = open( 1 << 20 );
+    assertNotNull( storage.getDirectory() );
+    assertEquals( "rwx------", PosixFilePermissions.toString(
+        Files.getPosixFilePermissions( mDirectory ) ) );
+
+    Files.setPosixFilePermissions(
+        mDirectory, PosixFilePermissions.fromString( "rwxrwxrwx" ) );
+    assertNotNull( open( 1 << 20 ).getDirectory() );
+    assertEquals( "rwx------", PosixFilePermissions.toString(
+        Files.getPosixFilePermissions( mDirectory ) ) );
+  }
+
+  public void testSymbolicLinkRefused() throws IOException {
+    final var target = Files.createDirectory(
+        mDirectory.resolveSibling( "target" ) );
+    Files.createSymbolicLink( mDirectory, target );
+
+    assertNull( open( 1 << 20 ).getDirectory() );
+  }
+
+  public void testForeignFilesRefused() throws IOException {
+    final var storage = open( 1 << 20 );
+    storage.putEntry( "http://a/", entry( body( 1000, 1 ) ) );
+    final var file = entryFiles().get( 0 );
+    final var lookup = mDirectory.getFileSystem().getUserPrincipalLookupService();
+
+    try {
+      Files.setOwner( file, lookup.lookupPrincipalByName( "nobody" ) );
+    } catch( final IOException | UnsupportedOperationException e ) {
+      // only a privileged user may give the files away
+      return;
+    }
+
+    // an entry planted by another user is not used
+    final var restarted = open( 1 << 20 );
+    assertNotNull( restarted.getDirectory() );
+    assertEquals( 0, restarted.getDiskEntryCount() );
+    assertNull( restarted.getEntry( "http://a/" ) );
+
+    // nor is a directory of another user
+    Files.setOwner( mDirectory, lookup.lookupPrincipalByName( "nobody" ) );
+    assertNull( open( 1 << 20 ).getDirectory() );
+  }
+
+  public void testStreamedBodyKeptWhenReplaced() throws IOException {
+    final var first = body( STREAMED_SIZE, 1 );
+    final var second = body( STREAMED_SIZE + 100, 2 );
+    final var storage = open( 1 << 20 );
+    storage.putEntry( "http://a/", entry( first ) );
+
+    final var entry = storage.getEntry( "http://a/" );
+    assertFalse( entry.getResource() instanceof HeapResource );
+    assertEquals( STREAMED_SIZE, entry.getResource().length() );
+
+    // the stream ends with the body, also when the file grows
+    Files.write( entryFiles().get( 0 ), new byte[ 100 ],
+                 StandardOpenOption.APPEND );
+    assertTrue( Arrays.equals( first, read( entry ) ) );
+
+    // the body is read from the file open when the entry was read
+    storage.putEntry( "http://a/", entry( second ) );
+    assertTrue( Arrays.equals( first, read( entry ) ) );
+    storage.removeEntry( "http://a/" );
+    assertTrue( Arrays.equals( first, read( entry ) ) );
+  }
+
+  public void testStreamedBodyStoredAgain() throws IOException {
+    final var body = body( STREAMED_SIZE, 1 );
+    final var storage = open( 1 << 20 );
+    storage.putEntry( "http://a/", entry( body ) );
+
+    // an updated entry keeps the streamed body of its own file
+    final var entry = storage.getEntry( "http://a/" );
+    storage.putEntry( "http://a/", entry );
+
+    final var restarted = open( 1 << 20 );
+    final var stored = restarted.getEntry( "http://a/" );
+    assertNotNull( stored );
+    assertTrue( Arrays.equals( body, read( stored ) ) );
+    assertEquals( 1, entryFiles().size() );
+  }
+
+  private TieredHttpCacheStorage open( final long maxDiskSize ) {
+    return new TieredHttpCacheStorage(
+        MEMORY_SIZE, mDirectory.toFile(), maxDiskSize );
+  }
+
+  private List<Path> entryFiles() throws IOException {
+    try( final Stream<Path> files = Files.list( mDirectory ) ) {
+      return files.filter( f -> f.toString().endsWith( ".entry" ) )
+                  .sorted().collect( Collectors.toList() );
+    }
+  }
+
+  private static HttpCacheEntry entry( final byte[] body ) {
+    final var date = new Date();
+    return new HttpCacheEntry(
+        date, date, new BasicStatusLine( HttpVersion.HTTP_1_1, 200, "OK" ),
+        new Header[]{ new BasicHeader( "Content-Type", "text/css" ) },
+        new HeapResource( body ), Collections.emptyMap(), "GET" );
+  }
+
+  private static byte[] body( final int length, final long seed ) {
+    final var ret = new byte[ length ];
+    new Random( seed ).nextBytes( ret );
+    return ret;
+  }
+
+  private static byte[] read( final HttpCacheEntry entry ) throws IOException {
+    try( final var in = entry.getResource().getInputStream() ) {
+      return in.readAllBytes();
+    }
+  }
+}
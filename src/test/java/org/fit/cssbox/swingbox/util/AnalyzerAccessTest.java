@@ -0,0 +1,73 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *  
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.fit.cssbox.css.DOMAnalyzer;
+import org.fit.cssbox.io.DefaultDOMSource;
+import org.fit.cssbox.io.StreamDocumentSource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import cz.vutbr.web.css.CSSProperty;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the non-public members of cssbox used by SwingBox are present,
+ * so that a change of the cssbox version that removes them fails the build.
+ */
+public class AnalyzerAccessTest extends TestCase
+{
+    public void testStyleSheetList() throws Exception
+    {
+        final DOMAnalyzer da = new DOMAnalyzer(parse("<html><body><div>text</div></body></html>"));
+        assertNotNull(AgentStyleSheets.getStyles(da));
+
+        AgentStyleSheets.addTo(da);
+        da.stylesToDomInherited();
+        final Element div = (Element) da.getRoot().getElementsByTagName("div").item(0);
+        assertEquals(CSSProperty.Display.BLOCK,
+                da.getElementStyleInherited(div).getProperty("display"));
+    }
+
+    public void testBackgroundPainter() throws Exception
+    {
+        // the protected cssbox methods are looked up when the class is initialized
+        Class.forName("org.fit.cssbox.swingbox.view.BackgroundPainter");
+    }
+
+    private static Document parse(String html) throws Exception
+    {
+        StreamDocumentSource src = new StreamDocumentSource(
+                new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8)),
+                new URL("http://localhost/"), "text/html");
+        try
+        {
+            return new DefaultDOMSource(src).parse();
+        } finally
+        {
+            src.close();
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *  
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.fit.cssbox.swingbox.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the images written by {@link PngStripWriter} decode to the
+ * pixels written and that the strips not fitting the image are refused.
+ */
+public class PngStripWriterTest extends TestCase
+{
+    private static final int WIDTH = 257;
+    private static final int HEIGHT = 300;
+
+    public void testDecodedPixels() throws IOException
+    {
+        final BufferedImage image = createImage();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngStripWriter png = new PngStripWriter(out, WIDTH, HEIGHT))
+        {
+            int y = 0;
+            for (int h : new int[] { 1, 37, 100, 161, 1 })
+            {
+                png.accept(image.getSubimage(0, y, WIDTH, h), y);
+                y += h;
+            }
+        }
+
+        final BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(decoded);
+        assertEquals(WIDTH, decoded.getWidth());
+        assertEquals(HEIGHT, decoded.getHeight());
+        for (int y = 0; y < HEIGHT; y++)
+        {
+            for (int x = 0; x < WIDTH; x++)
+            {
+                if ((image.getRGB(x, y) & 0xffffff) != (decoded.getRGB(x, y) & 0xffffff))
+                    fail("The pixel at " + x + "," + y + " differs");
+            }
+        }
+    }
+
+    public void testWrongPosition() throws IOException
+    {
+        final PngStripWriter png = new PngStripWriter(new ByteArrayOutputStream(), WIDTH, HEIGHT);
+        png.accept(createStrip(10), 0);
+        try
+        {
+            png.accept(createStrip(10), 20);
+            fail("A strip not following the previous one has been accepted");
+        } catch (IOException expected)
+        {
+        }
+    }
+
+    public void testTooManyRows() throws IOException
+    {
+        final PngStripWriter png = new PngStripWriter(new ByteArrayOutputStream(), WIDTH, HEIGHT);
+        png.accept(createStrip(HEIGHT - 10), 0);
+        try
+        {
+            png.accept(createStrip(11), HEIGHT - 10);
+            fail("A strip below the image has been accepted");
+        } catch (IOException expected)
+        {
+        }
+    }
+
+    public void testAfterClose() throws IOException
+    {
+        final PngStripWriter png = new PngStripWriter(new ByteArrayOutputStream(), WIDTH, HEIGHT);
+        png.accept(createStrip(HEIGHT), 0);
+        png.close();
+        try
+        {
+            png.accept(createStrip(1), HEIGHT);
+            fail("A strip has been accepted after closing");
+        } catch (IOException expected)
+        {
+        }
+    }
+
+    public void testMissingRows() throws IOException
+    {
+        final PngStripWriter png = new PngStripWriter(new ByteArrayOutputStream(), WIDTH, HEIGHT);
+        png.accept(createStrip(HEIGHT - 1), 0);
+        try
+        {
+            png.close();
+            fail("An incomplete image has been closed without an error");
+        } catch (IOException expected)
+        {
+        }
+    }
+
+    /**
+     * Creates an image with gradients, flat areas and noise, so that all the
+     * row filters are used and the data spans several IDAT chunks.
+     */
+    private static BufferedImage createImage()
+    {
+        final Random random = new Random(1);
+        final BufferedImage ret = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++)
+        {
+            for (int x = 0; x < WIDTH; x++)
+            {
+                final int rgb;
+                if (y < HEIGHT / 3)
+                    rgb = (x << 16) | (y << 8) | ((x + y) & 0xff);
+                else if (y < HEIGHT / 2)
+                    rgb = 0x336699;
+                else
+                    rgb = random.nextInt();
+                ret.setRGB(x, y, rgb);
+            }
+        }
+        return ret;
+    }
+
+    private static BufferedImage createStrip(int height)
+    {
+        return new BufferedImage(WIDTH, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * (c) Peter Bielik and Radek Burget, 2011-2012
+ *
+ * SwingBox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * SwingBox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *  
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with SwingBox. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.fit.cssbox.swingbox.view;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.Position;
+import javax.swing.text.View;
+
+import org.fit.cssbox.layout.Box;
+import org.fit.cssbox.layout.ElementBox;
+import org.fit.cssbox.swingbox.BrowserPane;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the views located using the {@link HitIndex} are the same as
+ * the ones found by searching all the leaf views, on a page with floats and
+ * overlapping boxes.
+ */
+public class HitIndexTest extends TestCase
+{
+    private static final int WIDTH = 600;
+    private static final int STEP = 7;
+
+    private File page;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        StringBuilder html = new StringBuilder("<html><head><style>"
+                + "body { margin: 0; font: 14px sans-serif }"
+                + ".f { float: left; width: 130px; height: 60px; margin: 4px; background: #9cf }"
+                + ".r { float: right; width: 90px; height: 140px; background: #fc9 }"
+                + ".down { position: relative; top: 20px; left: 40px; background: #cfc }"
+                + ".neg { margin-top: -25px; margin-left: 60px; width: 300px; background: #fcc }"
+                + ".abs { position: absolute; width: 150px; height: 80px; background: #ccf }"
+                + ".front { z-index: 2 } .back { z-index: -1 }"
+                + ".clip { overflow: hidden; height: 45px; width: 250px }"
+                + ".hidden { visibility: hidden }"
+                + "</style></head><body>");
+        for (int s = 0; s < 5; s++)
+        {
+            html.append("<div><h2>Section ").append(s).append("</h2>");
+            html.append("<div class=\"r\">Right ").append(s).append("</div>");
+            for (int i = 0; i < 6; i++)
+                html.append("<div class=\"f\">Float ").append(s).append('.').append(i)
+                        .append(" <a href=\"#\">link</a></div>");
+            html.append("<p class=\"down\">Shifted <span>over the next block</span> ").append(s).append("</p>");
+            html.append("<div class=\"neg\">Pulled up over the text <b>bold</b> ").append(s).append("</div>");
+            html.append("<div class=\"abs ").append(s % 2 == 0 ? "front" : "back").append("\" style=\"top: ")
+                    .append(80 + 260 * s).append("px; left: ").append(40 * s).append("px\">Absolute ")
+                    .append(s).append("</div>");
+            html.append("<div class=\"clip\">Clipped text that runs on and on, long enough to wrap"
+                    + " below the bottom of the box a few times ").append(s).append("</div>");
+            html.append("<div class=\"hidden\">Hidden <span style=\"visibility: visible\">visible</span></div>");
+            html.append("<p style=\"clear: both\">After ").append(s).append("</p></div>");
+        }
+        html.append("</body></html>");
+        page = File.createTempFile("hitindex", ".html");
+        Files.write(page.toPath(), html.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        page.delete();
+    }
+
+    public void testSameViewsAsLinearSearch() throws Exception
+    {
+        final BrowserPane pane = load();
+        final String[] error = new String[1];
+        final int[] compared = new int[1];
+        SwingUtilities.invokeAndWait(() -> {
+            final ElementBoxView viewport = viewportView(pane);
+            final int height = pane.getHeight();
+            for (int y = 0; y < height && error[0] == null; y += STEP)
+            {
+                for (int x = 0; x < WIDTH && error[0] == null; x += STEP)
+                {
+                    error[0] = compare(viewport, x, y);
+                    compared[0]++;
+                }
+            }
+        });
+        assertNull(error[0], error[0]);
+        assertTrue(compared[0] > 1000);
+    }
+
+    /**
+     * Compares the views located at a point on every level of the view tree
+     * and the resulting model positions.
+     * 
+     * @return the description of the difference or null if there is none
+     */
+    private static String compare(ElementBoxView viewport, int x, int y)
+    {
+        final Position.Bias[] bias = new Position.Bias[1];
+        final int actual = viewport.viewToModel(x, y, new Rectangle(), bias);
+
+        View v = viewport;
+        final Rectangle alloc = new Rectangle();
+        final Rectangle expectedAlloc = new Rectangle();
+        int expected;
+        while (true)
+        {
+            if (!(v instanceof ElementBoxView) || v.getViewCount() == 0)
+            {
+                expected = v.viewToModel(x, y, alloc, bias);
+                break;
+            }
+            ElementBoxView ev = (ElementBoxView) v;
+            if (ev.isBefore(x, y, alloc) || ev.isAfter(x, y, alloc))
+            {
+                expected = ev.viewToModel(x, y, alloc, bias);
+                break;
+            }
+            View found = ev.getViewAtPoint(x, y, alloc);
+            View linear = findLinear(ev, x, y, expectedAlloc);
+            if (found != linear)
+                return "At " + x + "," + y + " in " + describe(ev) + ": " + describe(found) + " instead of "
+                        + describe(linear);
+            if (found == null)
+            {
+                expected = -1;
+                break;
+            }
+            if (!alloc.equals(expectedAlloc))
+                return "At " + x + "," + y + " in " + describe(ev) + ": " + alloc + " instead of " + expectedAlloc;
+            v = found;
+        }
+        if (actual != expected)
+            return "At " + x + "," + y + ": position " + actual + " instead of " + expected;
+        return null;
+    }
+
+    /**
+     * Locates the child view at a point by searching the boxes of all the
+     * leaf views, the way it was done before the index. The child with the
+     * highest drawing order wins.
+     */
+    private static View findLinear(ElementBoxView parent, int x, int y, Rectangle alloc)
+    {
+        View retv = null;
+        int retorder = -1;
+        final List<View> leaves = new ArrayList<>();
+        findLeaves(parent, leaves);
+        for (View leaf : leaves)
+        {
+            if (leaf instanceof CSSBoxView)
+            {
+                Box b = ElementBoxView.getBox(leaf);
+                if (locateBox(b, x, y))
+                {
+                    View v = leaf;
+                    while (v.getParent() != null && v.getParent() != parent)
+                        v = v.getParent();
+                    int o = ((CSSBoxView) v).getDrawingOrder();
+                    if (retv == null || o >= retorder)
+                    {
+                        retv = v;
+                        retorder = o;
+                        alloc.setBounds(getCompleteBoxAllocation(b));
+                    }
+                }
+            }
+        }
+        return retv;
+    }
+
+    private static void findLeaves(View root, List<View> leaves)
+    {
+        if (root instanceof ElementBoxView && root.getViewCount() > 0)
+        {
+            for (int i = 0; i < root.getViewCount(); i++)
+                findLeaves(root.getView(i), leaves);
+        }
+        else
+            leaves.add(root);
+    }
+
+    /**
+     * Checks whether a visible box of the subtree contains the point.
+     */
+    private static boolean locateBox(Box root, int x, int y)
+    {
+        if (!root.isVisible())
+            return false;
+        Rectangle bounds = root.getAbsoluteContentBounds().intersection(root.getClipBlock().getClippedContentBounds());
+        if (bounds.contains(x, y))
+            return true;
+        if (root instanceof ElementBox)
+        {
+            ElementBox eb = (ElementBox) root;
+            for (int i = eb.getStartChild(); i < eb.getEndChild(); i++)
+            {
+                if (locateBox(eb.getSubBox(i), x, y))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static Rectangle getCompleteBoxAllocation(Box b)
+    {
+        Rectangle ret = b.getAbsoluteBounds();
+        if (b instanceof ElementBox)
+        {
+            ElementBox eb = (ElementBox) b;
+            for (int i = eb.getStartChild(); i < eb.getEndChild(); i++)
+            {
+                Box child = eb.getSubBox(i);
+                if (child.isVisible())
+                    ret.add(getCompleteBoxAllocation(child));
+            }
+        }
+        return ret.intersection(b.getClipBlock().getClippedContentBounds());
+    }
+
+    private static String describe(View v)
+    {
+        return (v == null) ? "null" : v.getClass().getSimpleName() + " " + ElementBoxView.getBox(v);
+    }
+
+    private BrowserPane load() throws Exception
+    {
+        final BrowserPane[] pane = new BrowserPane[1];
+        final CountDownLatch loaded = new CountDownLatch(1);
+        SwingUtilities.invokeAndWait(() -> {
+            pane[0] = new BrowserPane();
+            pane[0].setSize(WIDTH, 700);
+            pane[0].addPropertyChangeListener("page", e -> loaded.countDown());
+            try
+            {
+                pane[0].setPage(page.toURI().toURL());
+            } catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue("the page has not been loaded", loaded.await(30, TimeUnit.SECONDS));
+        SwingUtilities.invokeAndWait(() -> pane[0].setSize(WIDTH, pane[0].getPreferredSize().height));
+        return pane[0];
+    }
+
+    private static ElementBoxView viewportView(BrowserPane pane)
+    {
+        View v = pane.getUI().getRootView(pane);
+        while (v.getViewCount() > 0 && !(v instanceof ViewportView))
+            v = v.getView(0);
+        return (ElementBoxView) v;
+    }
+
+}